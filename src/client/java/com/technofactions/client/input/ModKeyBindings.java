@@ -1,6 +1,7 @@
 package com.technofactions.client.input;
 
 import com.technofactions.client.ui.ClaimMapScreen;
+import com.technofactions.client.ui.TerrainSurfaceCache;
 import net.fabricmc.fabric.api.client.keybinding.v1.KeyBindingHelper;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.option.KeyBinding;
@@ -14,6 +15,8 @@ public final class ModKeyBindings {
             KeyBinding.Category.create(Identifier.of("technofactions", "main"));
 
     private static KeyBinding OPEN_MAP;
+    private static KeyBinding TOGGLE_MAP_LAYER;
+    private static KeyBinding IMPORT_MAP;
 
     private ModKeyBindings() {}
 
@@ -24,6 +27,21 @@ public final class ModKeyBindings {
                 GLFW.GLFW_KEY_M,
                 MAIN_CATEGORY
         ));
+
+        TOGGLE_MAP_LAYER = KeyBindingHelper.registerKeyBinding(new KeyBinding(
+                "key.technofactions.toggle_map_layer",
+                InputUtil.Type.KEYSYM,
+                GLFW.GLFW_KEY_N,
+                MAIN_CATEGORY
+        ));
+
+        // unbound by default: only useful in singleplayer, and it writes the whole save into the map cache
+        IMPORT_MAP = KeyBindingHelper.registerKeyBinding(new KeyBinding(
+                "key.technofactions.import_map",
+                InputUtil.Type.KEYSYM,
+                GLFW.GLFW_KEY_UNKNOWN,
+                MAIN_CATEGORY
+        ));
     }
 
     public static void tick() {
@@ -34,5 +52,13 @@ public final class ModKeyBindings {
             if (mc.currentScreen instanceof ClaimMapScreen) mc.setScreen(null);
             else if (mc.currentScreen == null) mc.setScreen(new ClaimMapScreen());
         }
+
+        while (TOGGLE_MAP_LAYER.wasPressed()) {
+            TerrainSurfaceCache.toggleLayer();
+        }
+
+        while (IMPORT_MAP.wasPressed()) {
+            TerrainSurfaceCache.importSingleplayerWorld();
+        }
     }
 }
\ No newline at end of file
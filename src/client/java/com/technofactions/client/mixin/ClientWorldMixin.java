@@ -0,0 +1,25 @@
+package com.technofactions.client.mixin;
+
+import com.technofactions.client.ui.TerrainSurfaceCache;
+import net.minecraft.block.BlockState;
+import net.minecraft.client.world.ClientWorld;
+import net.minecraft.util.math.BlockPos;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * Every client-side block change (block update + chunk delta packets, local break/place prediction)
+ * ends up in updateListeners; forward it so the surface cache can re-capture that column. Chunks the
+ * server resends whole arrive as CHUNK_LOAD instead, which re-captures the entire chunk.
+ */
+@Mixin(ClientWorld.class)
+public abstract class ClientWorldMixin {
+
+    @Inject(method = "updateListeners", at = @At("HEAD"))
+    private void technofactions$onBlockChanged(BlockPos pos, BlockState oldState, BlockState newState, int flags, CallbackInfo ci) {
+        if (oldState == newState) return;
+        TerrainSurfaceCache.onBlockChanged((ClientWorld) (Object) this, pos.getX(), pos.getY(), pos.getZ());
+    }
+}
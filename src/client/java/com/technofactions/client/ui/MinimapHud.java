@@ -39,16 +39,16 @@ public final class MinimapHud {
 
         int s = TerrainMinimapHud.sampleSize();
 
-        // prevent tiling (your comment was right)
-        ctx.drawTexture(
-                RenderPipelines.GUI_TEXTURED,
-                TerrainMinimapHud.textureId(),
-                x0, y0,
-                0f, 0f,
-                HUD_DRAW_SIZE, HUD_DRAW_SIZE,
-                s, s,
-                s, s
-        );
+        // the texture is a wrap-around buffer starting at (u, v): draw it as up to 4 pieces split at the seam
+        int u = TerrainMinimapHud.originU();
+        int v = TerrainMinimapHud.originV();
+        int splitX = (s - u) * HUD_DRAW_SIZE / s;
+        int splitY = (s - v) * HUD_DRAW_SIZE / s;
+
+        drawPiece(ctx, x0, y0, u, v, splitX, splitY, s);
+        drawPiece(ctx, x0 + splitX, y0, 0, v, HUD_DRAW_SIZE - splitX, splitY, s);
+        drawPiece(ctx, x0, y0 + splitY, u, 0, splitX, HUD_DRAW_SIZE - splitY, s);
+        drawPiece(ctx, x0 + splitX, y0 + splitY, 0, 0, HUD_DRAW_SIZE - splitX, HUD_DRAW_SIZE - splitY, s);
 
         // crosshair at player (HUD is centered on player)
         int cx = x0 + HUD_DRAW_SIZE / 2;
@@ -62,4 +62,21 @@ public final class MinimapHud {
             ctx.drawTextWithShadow(mc.textRenderer, "Updating...", x0 + 4, y0 + HUD_DRAW_SIZE + 4, 0xFFFFFFFF);
         }
     }
-}
\ No newline at end of file
+
+    private static void drawPiece(DrawContext ctx, int x, int y, int u, int v, int w, int h, int s) {
+        if (w <= 0 || h <= 0) return;
+
+        // prevent tiling: the region never crosses the texture edge
+        int regionW = w * s / HUD_DRAW_SIZE;
+        int regionH = h * s / HUD_DRAW_SIZE;
+        ctx.drawTexture(
+                RenderPipelines.GUI_TEXTURED,
+                TerrainMinimapHud.textureId(),
+                x, y,
+                u, v,
+                w, h,
+                regionW, regionH,
+                s, s
+        );
+    }
+}
@@ -0,0 +1,72 @@
+package com.technofactions.client.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * access.idx of a cache directory: region key -> epoch seconds of last use, written by
+ * {@link TerrainRegionStore} and read by {@link TerrainCacheQuota} to evict least recently used regions.
+ *
+ * Only touches {@link TerrainRegionFile} besides the JDK, so {@link TerrainCacheTool} can run without the game.
+ */
+final class TerrainAccessIndex {
+    static final String FILE = "access.idx";
+
+    private static final int MAGIC = 0x54464149;   // "TFAI"
+
+    private TerrainAccessIndex() {}
+
+    static Map<Long, Integer> read(File dir) {
+        HashMap<Long, Integer> out = new HashMap<>();
+        File f = new File(dir, FILE);
+        if (!f.isFile()) return out;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC) return out;
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                int rx = in.readInt();
+                int rz = in.readInt();
+                out.put(TerrainRegionFile.regionKey(rx, rz), in.readInt());
+            }
+        } catch (IOException e) {
+            System.out.println("[TechnoFactions] TerrainAccessIndex read failed " + dir.getName() + ": " + e);
+        }
+        return out;
+    }
+
+    /**
+     * Merge session access times into the directory's access.idx, dropping regions whose file is gone.
+     */
+    static void merge(File dir, Map<Long, Integer> session) {
+        Map<Long, Integer> all = read(dir);
+        for (Map.Entry<Long, Integer> e : session.entrySet()) all.merge(e.getKey(), e.getValue(), Math::max);
+        all.keySet().removeIf(k -> !new File(dir, TerrainRegionFile.fileName((int) (k >> 32), (int) (long) k)).isFile());
+
+        File f = new File(dir, FILE);
+        File tmp = TerrainRegionFile.tempFile(f);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(all.size());
+                for (Map.Entry<Long, Integer> e : all.entrySet()) {
+                    long k = e.getKey();
+                    out.writeInt((int) (k >> 32));
+                    out.writeInt((int) k);
+                    out.writeInt(e.getValue());
+                }
+            }
+            TerrainRegionFile.replace(tmp, f);
+        } catch (IOException e) {
+            System.out.println("[TechnoFactions] TerrainAccessIndex write failed " + dir.getName() + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package com.technofactions.client.ui;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.MapColor;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtHelper;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.registry.Registries;
+import net.minecraft.registry.Registry;
+import net.minecraft.registry.RegistryKeys;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.EmptyBlockView;
+import net.minecraft.world.World;
+import net.minecraft.world.biome.Biome;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Background importer for {@link TerrainSurfaceCache}: renders a singleplayer save's Anvil region files
+ * (r.x.z.mca) straight into the cache, so the whole explored world shows up without loading it.
+ *
+ * Anvil and cache regions are both 32x32 chunks, so each .mca file becomes one batched .tfc write plus its
+ * LOD sidecar, one region per worker on up to {@link #MAX_THREADS} workers. Columns go through the same color
+ * pipeline as live captures ({@link TerrainSurfaceCache#surfaceArgb}, {@link TerrainSurfaceCache#applyRelief});
+ * chunks the cache already has at least as new as the save are skipped, checked again under the region's file
+ * lock when the batch is written.
+ *
+ * Chunks that do not decode (damaged, or torn by a save in progress) are skipped and counted, see
+ * {@link #chunksSkipped()}. Finished regions are handed to the client thread through {@link #poll()}.
+ * Closed before its store.
+ */
+final class TerrainAnvilImporter {
+    private static final int SECTOR_BYTES = 4096;
+
+    // workers share the store and its lock with the client thread; more than this only adds contention
+    private static final int MAX_THREADS = 2;
+
+    // close() gives up on workers stuck this long (a hung file system), leaving them to fail on the closed store
+    private static final int CLOSE_TIMEOUT_SECONDS = 30;
+
+    // Anvil chunk compression types; 128 flags an oversized chunk kept in a separate .mcc file
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+    private static final int COMPRESSION_LZ4 = 4;
+    private static final int COMPRESSION_EXTERNAL = 128;
+
+    private static final String STATUS_FULL = "minecraft:full";
+
+    /**
+     * Chunks of one region written to the store, and the region's LOD with them merged in.
+     */
+    static final class Region {
+        final int rx;
+        final int rz;
+        final long[] chunks = new long[TerrainRegionStore.CHUNKS_PER_REGION / 64];
+        TerrainSurfaceLod lod;
+
+        Region(int rx, int rz) {
+            this.rx = rx;
+            this.rz = rz;
+        }
+    }
+
+    /**
+     * One decoded chunk section: palette-indexed block states plus what a column walk needs per entry.
+     */
+    private static final class Section {
+        BlockState[] states;
+        byte[] mapColor;
+        byte[] tintKind;
+        long[] data;
+        int bits;
+
+        int[][] biomeTints;     // per biome palette entry, null if unknown
+        Biome[] biomes;
+        long[] biomeData;
+        int biomeBits;
+
+        BlockState state(int index) {
+            return states[paletteIndex(data, bits, index)];
+        }
+
+        /**
+         * Tint at section-local (lx, ly, lz); x, z are the block coordinates for per-column grass.
+         */
+        int biomeTint(int kind, int lx, int ly, int lz, int x, int z) {
+            int p = paletteIndex(biomeData, biomeBits, ((ly >> 2) << 4) | ((lz >> 2) << 2) | (lx >> 2));
+            int[] t = biomeTints[p];
+            if (t == null) return 0;
+            return t[kind] != 0 ? t[kind] : TerrainChunkSampler.grassTint(biomes[p], x, z);
+        }
+    }
+
+    private final File regionDir;
+    private final TerrainRegionStore store;
+    private final TerrainWriteQueue writer;
+    private final int ceiling;
+    private final Map<String, Biome> biomes;
+    private final Map<String, int[]> biomeTints = new HashMap<>();
+
+    private final ExecutorService pool;
+    private final ConcurrentLinkedQueue<Region> done = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger regionsDone = new AtomicInteger();
+    private final AtomicLong chunksImported = new AtomicLong();
+    private final AtomicLong chunksSkipped = new AtomicLong();
+    private final int regionsTotal;
+    private volatile boolean closed = false;
+
+    // palette entry NBT -> block state, shared by the workers (palettes repeat across every chunk)
+    private final ConcurrentHashMap<NbtCompound, BlockState> states = new ConcurrentHashMap<>();
+
+    /**
+     * Start importing every region file in regionDir, nearest to (centerRx, centerRz) first.
+     *
+     * @param ceiling     {@link TerrainMapLayer#SURFACE} or the slice ceiling of the target cache
+     * @param biomes     biome id -> biome, see {@link #biomes(World)}
+     */
+    TerrainAnvilImporter(File regionDir, TerrainRegionStore store, TerrainWriteQueue writer, int ceiling,
+                         Map<String, Biome> biomes, int centerRx, int centerRz) {
+        this.regionDir = regionDir;
+        this.store = store;
+        this.writer = writer;
+        this.ceiling = ceiling;
+        this.biomes = biomes;
+        for (Map.Entry<String, Biome> e : biomes.entrySet()) biomeTints.put(e.getKey(), TerrainChunkSampler.computeBiomeTints(e.getValue()));
+
+        List<int[]> regions = listRegions(regionDir);
+        regions.sort(Comparator.comparingLong(r -> {
+            long dx = r[0] - centerRx;
+            long dz = r[1] - centerRz;
+            return dx * dx + dz * dz;
+        }));
+        this.regionsTotal = regions.size();
+
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        AtomicInteger threadId = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "TechnoFactions-AnvilImport-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+
+        ThreadLocal<TerrainChunkCodec> codecs = ThreadLocal.withInitial(TerrainChunkCodec::new);
+        for (int[] r : regions) {
+            pool.execute(() -> {
+                try {
+                    if (!closed) importRegion(r[0], r[1], codecs.get());
+                } catch (Throwable t) {
+                    System.out.println("[TechnoFactions] TerrainAnvilImporter region " + r[0] + "," + r[1] + " failed: " + t);
+                }
+                regionsDone.incrementAndGet();
+            });
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Biome id -> biome, resolved on the client thread so the workers never touch the world's dynamic
+     * registries. Tints per kind are computed from it once (see {@link TerrainChunkSampler#computeBiomeTints});
+     * the biome itself is kept for grass with a per-column modifier.
+     */
+    static Map<String, Biome> biomes(World world) {
+        HashMap<String, Biome> out = new HashMap<>();
+        Registry<Biome> biomes = world.getRegistryManager().getOrThrow(RegistryKeys.BIOME);
+        for (Biome b : biomes) {
+            Identifier id = biomes.getId(b);
+            if (id != null) out.put(id.toString(), b);
+        }
+        return out;
+    }
+
+    /**
+     * Next finished region, or null if none is ready.
+     */
+    Region poll() {
+        return done.poll();
+    }
+
+    boolean isFinished() {
+        return pool.isTerminated();
+    }
+
+    int regionsDone() {
+        return regionsDone.get();
+    }
+
+    int regionsTotal() {
+        return regionsTotal;
+    }
+
+    long chunksImported() {
+        return chunksImported.get();
+    }
+
+    /**
+     * Chunks in the save that could not be read (damaged or torn); not counting chunks still being generated.
+     */
+    long chunksSkipped() {
+        return chunksSkipped.get();
+    }
+
+    /**
+     * Stop after the regions in progress and wait for the workers, so the store can be closed behind this.
+     * Workers are never interrupted: an interrupt during a positional read or write would close the store's
+     * shared file channel. They check for close between chunks, so the wait is one chunk plus one batch write;
+     * after {@link #CLOSE_TIMEOUT_SECONDS} this returns anyway.
+     */
+    void close() {
+        closed = true;
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS);
+        while (true) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                System.out.println("[TechnoFactions] TerrainAnvilImporter workers did not stop within " + CLOSE_TIMEOUT_SECONDS + "s, closing anyway");
+                break;
+            }
+            try {
+                if (pool.awaitTermination(Math.min(left, TimeUnit.SECONDS.toNanos(5)), TimeUnit.NANOSECONDS)) break;
+                System.out.println("[TechnoFactions] TerrainAnvilImporter still waiting for workers to stop");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        done.clear();
+    }
+
+    private static List<int[]> listRegions(File dir) {
+        ArrayList<int[]> out = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) return out;
+
+        for (String name : names) {
+            if (!name.startsWith("r.") || !name.endsWith(".mca")) continue;
+            String[] parts = name.split("\\.");
+            if (parts.length != 4) continue;
+            try {
+                out.add(new int[]{Integer.parseInt(parts[1]), Integer.parseInt(parts[2])});
+            } catch (NumberFormatException ignored) {}
+        }
+        return out;
+    }
+
+    // ---------------------------------------------------------------------
+    // One region
+    // ---------------------------------------------------------------------
+
+    private void importRegion(int rx, int rz, TerrainChunkCodec codec) throws IOException {
+        File f = new File(regionDir, "r." + rx + "." + rz + ".mca");
+
+        int[][] colors = new int[TerrainRegionStore.CHUNKS_PER_REGION][];
+        int[] saved = new int[TerrainRegionStore.CHUNKS_PER_REGION];
+        short[][] heights = new short[TerrainRegionStore.CHUNKS_PER_REGION][];
+        int[] scratchColor = new int[256];
+        short[] scratchTopY = new short[256];
+        byte[] mapColorIds = new byte[256];
+        int[] tints = new int[256];
+        IdentityHashMap<BlockState, Integer> stateInfo = new IdentityHashMap<>();
+
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            if (raf.length() < 2L * SECTOR_BYTES) return;
+
+            byte[] header = new byte[2 * SECTOR_BYTES];
+            raf.readFully(header);
+
+            for (int local = 0; local < TerrainRegionStore.CHUNKS_PER_REGION; local++) {
+                if (closed) return;
+
+                int location = readInt(header, local << 2);
+                if (location == 0) continue;
+
+                int cx = rx * TerrainRegionStore.REGION_SIZE + (local & (TerrainRegionStore.REGION_SIZE - 1));
+                int cz = rz * TerrainRegionStore.REGION_SIZE + (local >> TerrainRegionStore.REGION_SHIFT);
+
+                // cached at least as recently as the save wrote it (live capture), or still queued for writing
+                saved[local] = readInt(header, SECTOR_BYTES + (local << 2));
+                int cached = store.stamp(cx, cz);
+                if (cached != 0 && cached >= saved[local]) continue;
+                if (writer.peek(cx, cz, scratchColor, scratchTopY)) continue;
+
+                short[] topY = new short[256];
+                try {
+                    NbtCompound nbt = readChunk(raf, (location >>> 8) * (long) SECTOR_BYTES, (location & 0xFF) * SECTOR_BYTES);
+                    if (nbt == null || !sampleChunk(nbt, cx, cz, stateInfo, mapColorIds, topY, tints)) continue;
+                } catch (IOException | RuntimeException e) {
+                    // one damaged chunk doesn't cost the rest of the region
+                    chunksSkipped.incrementAndGet();
+                    continue;
+                }
+
+                int[] color = new int[256];
+                for (int li = 0; li < 256; li++) color[li] = TerrainSurfaceCache.surfaceArgb(mapColorIds[li] & 0xFF, topY[li], tints[li]);
+                colors[local] = color;
+                heights[local] = topY;
+            }
+        }
+
+        Region out = new Region(rx, rz);
+        ArrayList<TerrainRegionStore.Entry> entries = new ArrayList<>();
+        short[] west = new short[16];
+        short[] north = new short[16];
+
+        for (int local = 0; local < TerrainRegionStore.CHUNKS_PER_REGION; local++) {
+            if (colors[local] == null) continue;
+
+            int cx = rx * TerrainRegionStore.REGION_SIZE + (local & (TerrainRegionStore.REGION_SIZE - 1));
+            int cz = rz * TerrainRegionStore.REGION_SIZE + (local >> TerrainRegionStore.REGION_SHIFT);
+
+            // relief needs the west column / north row of the neighbours: imported with this region, or cached
+            neighbourEdge(heights, cx - 1, cz, rx, rz, true, west, scratchColor, scratchTopY);
+            neighbourEdge(heights, cx, cz - 1, rx, rz, false, north, scratchColor, scratchTopY);
+            TerrainSurfaceCache.applyRelief(colors[local], heights[local], west, north);
+
+            TerrainRegionStore.Entry e = new TerrainRegionStore.Entry(cx, cz, colors[local], heights[local]);
+            e.olderThan = Math.max(1, saved[local]);
+            e.encode(codec);
+            entries.add(e);
+        }
+        if (entries.isEmpty() || closed) return;
+
+        // a live capture may have been written since the check above; the store re-checks under the file lock
+        int written = store.writeRegion(rx, rz, entries);
+        chunksImported.addAndGet(written);
+        if (written == 0) return;
+        entries.removeIf(e -> !e.written);
+        for (TerrainRegionStore.Entry e : entries) {
+            int local = TerrainRegionStore.localIndex(e.cx, e.cz);
+            out.chunks[local >>> 6] |= 1L << local;
+        }
+
+        TerrainSurfaceLod lod = writer.peekLod(rx, rz);
+        if (lod == null) lod = store.readLod(rx, rz);
+        if (lod == null) lod = new TerrainSurfaceLod();
+        for (TerrainRegionStore.Entry e : entries) {
+            lod.put(TerrainRegionStore.localIndex(e.cx, e.cz), e.color, e.topY);
+        }
+        out.lod = lod;
+        done.add(out);
+    }
+
+    /**
+     * Border heights of neighbour chunk (cx, cz) facing the chunk being shaded: its east column (west
+     * neighbour) or its south row (north neighbour). Short.MIN_VALUE where unknown.
+     */
+    private void neighbourEdge(short[][] heights, int cx, int cz, int rx, int rz, boolean westNeighbour,
+                               short[] out, int[] scratchColor, short[] scratchTopY) {
+        short[] h = null;
+        if (Math.floorDiv(cx, TerrainRegionStore.REGION_SIZE) == rx && Math.floorDiv(cz, TerrainRegionStore.REGION_SIZE) == rz) {
+            h = heights[TerrainRegionStore.localIndex(cx, cz)];
+        }
+        if (h == null && store.readChunk(cx, cz, scratchColor, scratchTopY)) h = scratchTopY;
+
+        if (h == null) {
+            Arrays.fill(out, Short.MIN_VALUE);
+        } else {
+            for (int i = 0; i < 16; i++) out[i] = westNeighbour ? h[(i << 4) | 15] : h[(15 << 4) | i];
+        }
+    }
+
+    /**
+     * Read and decompress one chunk's NBT. Null for oversized chunks kept outside the region file; throws
+     * for entries that point outside the file, bad lengths and unknown compression types.
+     */
+    private static NbtCompound readChunk(RandomAccessFile raf, long offset, int maxBytes) throws IOException {
+        if (offset < 2L * SECTOR_BYTES || maxBytes <= 0) throw new IOException("bad chunk location");
+        if (offset + 5 > raf.length()) throw new EOFException("chunk past the end of the region file");
+
+        raf.seek(offset);
+        int length = raf.readInt();
+        int compression = raf.readUnsignedByte();
+        if ((compression & COMPRESSION_EXTERNAL) != 0) return null;
+        if (length <= 1 || length > maxBytes) throw new IOException("bad chunk length " + length);
+
+        byte[] payload = new byte[length - 1];
+        raf.readFully(payload);
+
+        InputStream in = new ByteArrayInputStream(payload);
+        switch (compression) {
+            case COMPRESSION_GZIP -> in = new GZIPInputStream(in);
+            case COMPRESSION_ZLIB -> in = new InflaterInputStream(in);
+            case COMPRESSION_NONE -> {}
+            case COMPRESSION_LZ4 -> in = new LZ4BlockInputStream(in);
+            default -> throw new IOException("unknown chunk compression " + compression);
+        }
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+            return NbtIo.readCompound(data);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Chunk NBT -> map color ids / heights / tints
+    // ---------------------------------------------------------------------
+
+    /**
+     * Same columns as {@link TerrainChunkSampler#sample}: the highest non-air block for the surface, or the
+     * first solid block below open space under the ceiling. False for chunks not fully generated.
+     */
+    private boolean sampleChunk(NbtCompound nbt, int cx, int cz, IdentityHashMap<BlockState, Integer> stateInfo,
+                                byte[] mapColorIds, short[] topY, int[] tints) {
+        if (!STATUS_FULL.equals(nbt.getStringOr("Status", ""))) return false;
+
+        NbtList list = nbt.getListOrEmpty("sections");
+        int minSection = nbt.getIntOr("yPos", Integer.MAX_VALUE);
+        int maxSection = Integer.MIN_VALUE;
+        for (int i = 0; i < list.size(); i++) {
+            int sy = list.getCompoundOrEmpty(i).getByteOr("Y", (byte) 0);
+            minSection = Math.min(minSection, sy);
+            maxSection = Math.max(maxSection, sy);
+        }
+        if (maxSection == Integer.MIN_VALUE) return false;
+
+        // index 0 = minSection; null = empty (all air)
+        Section[] sections = new Section[maxSection - minSection + 1];
+        for (int i = 0; i < list.size(); i++) {
+            NbtCompound s = list.getCompoundOrEmpty(i);
+            sections[s.getByteOr("Y", (byte) 0) - minSection] = decodeSection(s, stateInfo);
+        }
+
+        int bottomY = minSection << 4;
+        int maxY = ((maxSection + 1) << 4) - 1;
+
+        for (int li = 0; li < 256; li++) {
+            int lx = li & 15;
+            int lz = li >> 4;
+
+            mapColorIds[li] = (byte) MapColor.CLEAR.id;
+            tints[li] = 0;
+
+            int surface = walk(sections, bottomY, maxY, true, lx, lz);
+            if (ceiling == TerrainChunkSampler.NO_CEILING) {
+                topY[li] = (short) (surface != Integer.MIN_VALUE ? surface + 1 : bottomY);
+                if (surface != Integer.MIN_VALUE) colorColumn(sections, bottomY, surface, cx, cz, li, mapColorIds, tints);
+                continue;
+            }
+
+            // slice: starting inside solid blocks (a roof) means walking down to the first air first
+            int y = surface == Integer.MIN_VALUE || ceiling >= surface ? surface : walk(sections, bottomY, ceiling, false, lx, lz);
+            topY[li] = y != Integer.MIN_VALUE ? (short) Math.max(Short.MIN_VALUE + 1, Math.min(Short.MAX_VALUE, y + 1)) : Short.MIN_VALUE;
+            if (y != Integer.MIN_VALUE) colorColumn(sections, bottomY, y, cx, cz, li, mapColorIds, tints);
+        }
+        return true;
+    }
+
+    /**
+     * Walk a column down from fromY to the first non-air block with open space above it (open: the
+     * start counts as open). Returns its y, or Integer.MIN_VALUE if there is none.
+     */
+    private static int walk(Section[] sections, int bottomY, int fromY, boolean open, int lx, int lz) {
+        int y = fromY;
+        while (y >= bottomY) {
+            int si = (y - bottomY) >> 4;
+            Section s = si < sections.length ? sections[si] : null;
+
+            if (s == null) {
+                open = true;
+                y = bottomY + (si << 4) - 1;
+                continue;
+            }
+
+            if (s.state(((y & 15) << 8) | (lz << 4) | lx).isAir()) {
+                open = true;
+            } else if (open) {
+                return y;
+            }
+            y--;
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    private static void colorColumn(Section[] sections, int bottomY, int y, int cx, int cz, int li, byte[] mapColorIds, int[] tints) {
+        int lx = li & 15;
+        int lz = li >> 4;
+        Section s = sections[(y - bottomY) >> 4];
+        int p = paletteIndex(s.data, s.bits, ((y & 15) << 8) | (lz << 4) | lx);
+        mapColorIds[li] = s.mapColor[p];
+        int kind = s.tintKind[p];
+        tints[li] = kind != TerrainChunkSampler.TINT_NONE ? s.biomeTint(kind, lx, y & 15, lz, (cx << 4) + lx, (cz << 4) + lz) : 0;
+    }
+
+    /**
+     * Null for sections without blocks other than air.
+     */
+    private Section decodeSection(NbtCompound nbt, IdentityHashMap<BlockState, Integer> stateInfo) {
+        NbtCompound blockStates = nbt.getCompoundOrEmpty("block_states");
+        NbtList palette = blockStates.getListOrEmpty("palette");
+        int n = palette.size();
+        if (n == 0) return null;
+
+        Section s = new Section();
+        s.states = new BlockState[n];
+        s.mapColor = new byte[n];
+        s.tintKind = new byte[n];
+        boolean allAir = true;
+        for (int i = 0; i < n; i++) {
+            BlockState state = states.computeIfAbsent(palette.getCompoundOrEmpty(i), c -> NbtHelper.toBlockState(Registries.BLOCK, c));
+            Integer info = stateInfo.get(state);
+            if (info == null) {
+                int id = state.getMapColor(EmptyBlockView.INSTANCE, BlockPos.ORIGIN).id;
+                info = (id & 0xFF) | (TerrainChunkSampler.resolveTintKind(state) << 8);
+                stateInfo.put(state, info);
+            }
+            s.states[i] = state;
+            s.mapColor[i] = (byte) info.intValue();
+            s.tintKind[i] = (byte) (info >> 8);
+            allAir &= state.isAir();
+        }
+        if (allAir) return null;
+
+        // block indices are at least 4 bits wide; a single-entry palette has no data
+        s.bits = n > 1 ? Math.max(4, bitsFor(n)) : 0;
+        s.data = n > 1 ? blockStates.getLongArray("data").orElse(null) : null;
+        if (n > 1 && (s.data == null || s.data.length < (4096 + (64 / s.bits) - 1) / (64 / s.bits))) return null;
+
+        NbtCompound biomes = nbt.getCompoundOrEmpty("biomes");
+        NbtList biomePalette = biomes.getListOrEmpty("palette");
+        int bn = Math.max(1, biomePalette.size());
+        s.biomeTints = new int[bn][];
+        s.biomes = new Biome[bn];
+        for (int i = 0; i < biomePalette.size(); i++) {
+            String id = biomePalette.getStringOr(i, "");
+            s.biomeTints[i] = biomeTints.get(id);
+            s.biomes[i] = this.biomes.get(id);
+        }
+        s.biomeBits = bn > 1 ? bitsFor(bn) : 0;
+        s.biomeData = bn > 1 ? biomes.getLongArray("data").orElse(null) : null;
+        if (bn > 1 && (s.biomeData == null || s.biomeData.length < (64 + (64 / s.biomeBits) - 1) / (64 / s.biomeBits))) {
+            s.biomeBits = 0;
+            s.biomeData = null;
+        }
+        return s;
+    }
+
+    /**
+     * Entry of a packed palette index array: values never straddle two longs. 0 when there is no data
+     * (single-entry palette).
+     */
+    private static int paletteIndex(long[] data, int bits, int index) {
+        if (bits == 0) return 0;
+        int perLong = 64 / bits;
+        long word = data[index / perLong];
+        return (int) ((word >>> ((index % perLong) * bits)) & ((1L << bits) - 1));
+    }
+
+    private static int bitsFor(int paletteSize) {
+        return 32 - Integer.numberOfLeadingZeros(paletteSize - 1);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,314 @@
+package com.technofactions.client.ui;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Disk budget for minimap_cache/: per server (all dimensions of one server/save) and in total.
+ *
+ * Every cache directory carries meta.properties (server + dimension) and access.idx (region key ->
+ * epoch seconds of last use, see {@link TerrainAccessIndex}). A background scan sums region file sizes
+ * and deletes least recently used regions (.tfc + .lod) until both budgets hold. Regions the active
+ * store touched this session are never evicted; other regions of the active directory go through the
+ * store so no open handle is left pointing at a deleted file. Regions another game instance has open
+ * (see {@link TerrainRegionFile#inUse}) or wrote in the last few minutes are kept as well.
+ *
+ * Slice layers (slice_<y>/ subdirectories, see {@link TerrainMapLayer}) are cache directories of their own.
+ *
+ * Budgets live in config/technofactions/minimap_cache.properties, re-read on every scan. Both are unlimited
+ * (0) unless configured there, so nothing is deleted by default.
+ */
+final class TerrainCacheQuota {
+    static final String CONFIG_FILE = "minimap_cache.properties";
+    static final String META_FILE = "meta.properties";
+
+    // Regions written this recently may be in use by another game instance sharing the directory
+    private static final int RECENT_WRITE_PIN_SECONDS = 15 * 60;
+
+    private static final long DEFAULT_PER_SERVER_MB = 0;
+    private static final long DEFAULT_TOTAL_MB = 0;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TechnoFactions-CacheQuota");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final AtomicBoolean SCAN_QUEUED = new AtomicBoolean(false);
+
+    private static volatile TerrainSurfaceCache.DiskUsage lastUsage = null;
+
+    private TerrainCacheQuota() {}
+
+    private record Region(File dir, String server, int rx, int rz, long bytes, int lastUse, boolean pinned) {}
+
+    static TerrainSurfaceCache.DiskUsage lastUsage() {
+        return lastUsage;
+    }
+
+    /**
+     * Queue a scan unless one is already queued. activeStore may be null; openStores are every store
+     * still open (the active one and parked dimensions), whose regions are deleted through the store.
+     */
+    static void scanAsync(File root, TerrainRegionStore activeStore, List<TerrainRegionStore> openStores) {
+        if (!SCAN_QUEUED.compareAndSet(false, true)) return;
+
+        // taken now, on the caller's thread, so the scan sees what each open store already touched
+        HashMap<File, TerrainRegionStore> open = new HashMap<>();
+        HashMap<File, Map<Long, Integer>> pinned = new HashMap<>();
+        for (TerrainRegionStore st : openStores) {
+            open.put(st.dir(), st);
+            pinned.put(st.dir(), st.accessSnapshot());
+        }
+
+        EXECUTOR.execute(() -> {
+            SCAN_QUEUED.set(false);
+            try {
+                scan(root, activeStore, open, pinned);
+            } catch (Throwable t) {
+                System.out.println("[TechnoFactions] TerrainCacheQuota scan failed: " + t);
+            }
+        });
+    }
+
+    /**
+     * Write meta.properties for a cache directory if it does not have one yet.
+     */
+    static void writeMetaIfMissing(File dir, String server, String dimension) {
+        File f = new File(dir, META_FILE);
+        if (f.isFile()) return;
+
+        Properties p = new Properties();
+        p.setProperty("server", server);
+        p.setProperty("dimension", dimension);
+        try (Writer w = new FileWriter(f)) {
+            p.store(w, "TechnoFactions minimap cache");
+        } catch (IOException e) {
+            System.out.println("[TechnoFactions] TerrainCacheQuota meta write failed: " + e);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // scan
+    // ---------------------------------------------------------------------
+
+    private static void scan(File root, TerrainRegionStore activeStore, Map<File, TerrainRegionStore> open, Map<File, Map<Long, Integer>> pinned) {
+        long[] budgets = loadBudgets(root.getParentFile());
+        long perServer = budgets[0];
+        long total = budgets[1];
+
+        File[] top = root.listFiles(File::isDirectory);
+        if (top == null) return;
+
+        // cache directories plus their slice layers, layers first so they are emptied before their parent
+        ArrayList<File> dirs = new ArrayList<>(top.length);
+        for (File dir : top) {
+            File[] layers = dir.listFiles(File::isDirectory);
+            if (layers != null) dirs.addAll(Arrays.asList(layers));
+            dirs.add(dir);
+        }
+
+        File activeDir = activeStore != null ? activeStore.dir() : null;
+        long now = System.currentTimeMillis() / 1000L;
+
+        ArrayList<Region> regions = new ArrayList<>();
+        HashMap<String, Long> serverBytes = new HashMap<>();
+        long totalBytes = 0;
+
+        for (File dir : dirs) {
+            String server = readServer(dir);
+            Map<Long, Integer> access = TerrainAccessIndex.read(dir);
+            Map<Long, Integer> touched = pinned.getOrDefault(dir, Map.of());
+
+            File[] files = dir.listFiles();
+            if (files == null) continue;
+
+            HashMap<Long, long[]> sizes = new HashMap<>();   // key -> {bytes, lastModified}
+            for (File f : files) {
+                long key = parseRegionKey(f.getName());
+                if (key == Long.MIN_VALUE) continue;
+
+                long[] s = sizes.computeIfAbsent(key, k -> new long[2]);
+                s[0] += f.length();
+                s[1] = Math.max(s[1], f.lastModified() / 1000L);
+            }
+
+            for (Map.Entry<Long, long[]> e : sizes.entrySet()) {
+                long key = e.getKey();
+                long bytes = e.getValue()[0];
+                int lastUse = access.getOrDefault(key, (int) e.getValue()[1]);
+                boolean pin = touched.containsKey(key) || e.getValue()[1] > now - RECENT_WRITE_PIN_SECONDS;
+
+                regions.add(new Region(dir, server, (int) (key >> 32), (int) key, bytes, lastUse, pin));
+                serverBytes.merge(server, bytes, Long::sum);
+                totalBytes += bytes;
+            }
+        }
+
+        regions.sort((a, b) -> Integer.compare(a.lastUse, b.lastUse));
+
+        int evicted = 0;
+        long evictedBytes = 0;
+
+        // per server first, oldest regions of that server
+        if (perServer > 0) {
+            for (int i = 0; i < regions.size(); i++) {
+                Region r = regions.get(i);
+                long used = serverBytes.getOrDefault(r.server, 0L);
+                if (used <= perServer || r.pinned) continue;
+                if (!delete(r, open)) continue;
+
+                serverBytes.put(r.server, used - r.bytes);
+                totalBytes -= r.bytes;
+                evicted++;
+                evictedBytes += r.bytes;
+                regions.set(i, null);
+            }
+        }
+
+        // then globally, oldest regions anywhere
+        if (total > 0) {
+            for (int i = 0; i < regions.size() && totalBytes > total; i++) {
+                Region r = regions.get(i);
+                if (r == null || r.pinned) continue;
+                if (!delete(r, open)) continue;
+
+                serverBytes.merge(r.server, -r.bytes, Long::sum);
+                totalBytes -= r.bytes;
+                evicted++;
+                evictedBytes += r.bytes;
+            }
+        }
+
+        for (File dir : dirs) {
+            if (!open.containsKey(dir)) removeIfEmpty(dir);
+        }
+
+        String activeServer = activeDir != null ? readServer(activeDir) : null;
+        long activeServerBytes = activeServer != null ? serverBytes.getOrDefault(activeServer, 0L) : 0L;
+
+        lastUsage = new TerrainSurfaceCache.DiskUsage(activeServerBytes, perServer, totalBytes, total, evicted, evictedBytes);
+
+        System.out.println("[TechnoFactions] Minimap cache disk usage: server " + mb(activeServerBytes) + "/" + mbLimit(perServer)
+                + " MB, total " + mb(totalBytes) + "/" + mbLimit(total) + " MB"
+                + (evicted > 0 ? ", evicted " + evicted + " regions (" + mb(evictedBytes) + " MB)" : ""));
+    }
+
+    private static boolean delete(Region r, Map<File, TerrainRegionStore> open) {
+        TerrainRegionStore store = open.get(r.dir);
+        if (store != null) return store.deleteRegion(r.rx, r.rz);
+
+        File tfc = new File(r.dir, TerrainRegionStore.regionFileName(r.rx, r.rz));
+        File lod = new File(r.dir, TerrainRegionStore.lodFileName(r.rx, r.rz));
+        if (TerrainRegionFile.inUse(tfc)) return false;
+        boolean ok = !tfc.exists() || tfc.delete();
+        if (lod.exists() && !lod.delete()) ok = false;
+        return ok;
+    }
+
+    /**
+     * Drop a cache directory once its last region is gone (meta and access index included).
+     */
+    private static void removeIfEmpty(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.isDirectory() || parseRegionKey(f.getName()) != Long.MIN_VALUE) return;
+        }
+        for (File f : files) {
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    /**
+     * Packed region key for r.<rx>.<rz>.tfc / .lod, Long.MIN_VALUE for anything else.
+     */
+    static long parseRegionKey(String name) {
+        if (!name.startsWith("r.") || !(name.endsWith(".tfc") || name.endsWith(".lod"))) return Long.MIN_VALUE;
+
+        String mid = name.substring(2, name.length() - 4);
+        int dot = mid.indexOf('.');
+        if (dot <= 0) return Long.MIN_VALUE;
+        try {
+            return TerrainRegionStore.packRegionKey(Integer.parseInt(mid.substring(0, dot)), Integer.parseInt(mid.substring(dot + 1)));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static String readServer(File dir) {
+        File f = new File(dir, META_FILE);
+        if (f.isFile()) {
+            Properties p = new Properties();
+            try (Reader r = new FileReader(f)) {
+                p.load(r);
+                String s = p.getProperty("server");
+                if (s != null && !s.isBlank()) return s;
+            } catch (IOException ignored) {}
+        }
+        // directories from before meta files existed count as their own server
+        return dir.getName();
+    }
+
+    /**
+     * {perServerBytes, totalBytes}; 0 means unlimited. Writes the defaults on first use.
+     */
+    private static long[] loadBudgets(File configDir) {
+        File f = new File(configDir, CONFIG_FILE);
+        Properties p = new Properties();
+
+        if (f.isFile()) {
+            try (Reader r = new FileReader(f)) {
+                p.load(r);
+            } catch (IOException e) {
+                System.out.println("[TechnoFactions] TerrainCacheQuota config read failed: " + e);
+            }
+        } else {
+            p.setProperty("perServerMB", Long.toString(DEFAULT_PER_SERVER_MB));
+            p.setProperty("totalMB", Long.toString(DEFAULT_TOTAL_MB));
+            try (Writer w = new FileWriter(f)) {
+                p.store(w, "Minimap surface cache disk budgets in MB (0 = unlimited)");
+            } catch (IOException e) {
+                System.out.println("[TechnoFactions] TerrainCacheQuota config write failed: " + e);
+            }
+        }
+
+        return new long[] {
+                parseMb(p.getProperty("perServerMB"), DEFAULT_PER_SERVER_MB),
+                parseMb(p.getProperty("totalMB"), DEFAULT_TOTAL_MB)
+        };
+    }
+
+    private static long parseMb(String v, long def) {
+        long mb = def;
+        if (v != null) {
+            try {
+                mb = Long.parseLong(v.trim());
+            } catch (NumberFormatException ignored) {}
+        }
+        return Math.max(0, mb) * 1024L * 1024L;
+    }
+
+    private static long mb(long bytes) {
+        return bytes / (1024L * 1024L);
+    }
+
+    private static String mbLimit(long bytes) {
+        return bytes > 0 ? Long.toString(mb(bytes)) : "unlimited";
+    }
+}
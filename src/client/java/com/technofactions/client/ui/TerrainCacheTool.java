@@ -0,0 +1,401 @@
+package com.technofactions.client.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline maintenance for minimap_cache/ directories, runnable without starting the game. Only
+ * {@link TerrainRegionFile}, {@link TerrainChunkCodec} and {@link TerrainAccessIndex} are loaded, which need
+ * nothing but the JDK, so the mod jar alone is the whole classpath:
+ *
+ *   java -cp technofactions-client.jar com.technofactions.client.ui.TerrainCacheTool <command> ...
+ *
+ *   verify  <dir>...                     decode every entry, report truncated and undecodable ones
+ *                                        (read-only: files are not converted or modified)
+ *   compact [--min-waste <pct>] <dir>... rewrite regions with at least pct % free space (default 25),
+ *                                        dropping broken entries; empty regions are deleted
+ *   migrate [--to 1|3] <dir>...          convert region files to a format version (default 3)
+ *   merge   <target> <source>...         copy chunks into target where it lacks them or has older ones
+ *
+ * A dir is a cache root or any directory below it; every r.x.z.tfc underneath is processed, one region
+ * per task across all cores. The game must not be running on the same directories.
+ */
+public final class TerrainCacheTool {
+    private static final int DEFAULT_MIN_WASTE_PERCENT = 25;
+
+    // a compile-time constant, so TerrainCacheQuota itself is never loaded
+    private static final String META_FILE = TerrainCacheQuota.META_FILE;
+
+    private static final ThreadLocal<TerrainChunkCodec> CODECS = ThreadLocal.withInitial(TerrainChunkCodec::new);
+
+    private TerrainCacheTool() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            usage();
+            System.exit(2);
+        }
+
+        List<String> rest = new ArrayList<>(Arrays.asList(args).subList(1, args.length));
+        int problems;
+        switch (args[0]) {
+            case "verify" -> problems = verify(files(rest));
+            case "compact" -> {
+                int minWaste = intOption(rest, "--min-waste", DEFAULT_MIN_WASTE_PERCENT);
+                problems = compact(files(rest), minWaste);
+            }
+            case "migrate" -> {
+                int to = intOption(rest, "--to", TerrainRegionFile.VERSION);
+                if (to != 1 && to != TerrainRegionFile.VERSION) {
+                    System.out.println("unknown format version " + to);
+                    System.exit(2);
+                }
+                problems = migrate(files(rest), to);
+            }
+            case "merge" -> {
+                if (rest.size() < 2) {
+                    usage();
+                    System.exit(2);
+                }
+                File target = new File(rest.get(0));
+                ArrayList<File> sources = new ArrayList<>();
+                for (String s : rest.subList(1, rest.size())) sources.add(new File(s));
+                problems = merge(target, sources);
+            }
+            default -> {
+                usage();
+                System.exit(2);
+                return;
+            }
+        }
+        System.exit(problems == 0 ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.out.println("usage: TerrainCacheTool verify <dir>...");
+        System.out.println("       TerrainCacheTool compact [--min-waste <pct>] <dir>...");
+        System.out.println("       TerrainCacheTool migrate [--to 1|3] <dir>...");
+        System.out.println("       TerrainCacheTool merge <target> <source>...");
+    }
+
+    // ---------------------------------------------------------------------
+    // verify
+    // ---------------------------------------------------------------------
+
+    /**
+     * Returns the number of regions with problems.
+     */
+    static int verify(List<File> regions) throws InterruptedException {
+        AtomicInteger chunks = new AtomicInteger();
+        int bad = runAll(regions, f -> {
+            int version = TerrainRegionFile.detectVersion(f);
+            if (version == 1) {
+                System.out.println(f + ": v1 format (run migrate)");
+                return true;
+            }
+
+            TerrainChunkCodec codec = CODECS.get();
+            int[] color = new int[256];
+            short[] topY = new short[256];
+            try (TerrainRegionFile r = TerrainRegionFile.openReadOnly(f)) {
+                if (r == null) return true;
+
+                int undecodable = 0;
+                for (int i = 0; i < TerrainRegionFile.CHUNKS; i++) {
+                    if (!r.isBuilt(i)) continue;
+                    if (r.read(i, codec, color, topY) == TerrainRegionFile.READ_OK) chunks.incrementAndGet();
+                    else undecodable++;
+                }
+                if (r.damaged() == 0 && undecodable == 0) return true;
+
+                System.out.println(f + ": " + r.damaged() + " truncated, " + undecodable + " undecodable entries (run compact)");
+                return false;
+            }
+        });
+        System.out.println("verify: " + regions.size() + " regions, " + chunks.get() + " chunks ok, " + bad + " regions with problems");
+        return bad;
+    }
+
+    // ---------------------------------------------------------------------
+    // compact
+    // ---------------------------------------------------------------------
+
+    static int compact(List<File> regions, int minWastePercent) throws InterruptedException {
+        AtomicInteger rewritten = new AtomicInteger();
+        AtomicInteger deleted = new AtomicInteger();
+        AtomicLong saved = new AtomicLong();
+
+        int bad = runAll(regions, f -> {
+            if (TerrainRegionFile.detectVersion(f) != TerrainRegionFile.VERSION) {
+                System.out.println(f + ": not v" + TerrainRegionFile.VERSION + " (run migrate first)");
+                return false;
+            }
+
+            TerrainChunkCodec codec = CODECS.get();
+            long before = f.length();
+            boolean empty;
+            boolean worth;
+            try (TerrainRegionFile r = TerrainRegionFile.openReadOnly(f)) {
+                if (r == null) return true;
+                empty = r.builtCount() == 0;
+                long waste = r.sizeBytes() - r.usedBytes();
+                worth = r.damaged() > 0 || waste * 100 >= r.sizeBytes() * (long) minWastePercent;
+            }
+
+            if (empty) {
+                deleteRegion(f);
+                deleted.incrementAndGet();
+                saved.addAndGet(before);
+                return true;
+            }
+            if (!worth) return true;
+
+            rewrite(f, codec);
+            rewritten.incrementAndGet();
+            saved.addAndGet(before - f.length());
+            return true;
+        });
+        System.out.println("compact: " + rewritten.get() + " rewritten, " + deleted.get() + " empty deleted, "
+                + (saved.get() >> 10) + " KB freed");
+        return bad;
+    }
+
+    /**
+     * Copy every entry that still decodes into a fresh file, payloads packed in local order, stamps kept.
+     */
+    private static void rewrite(File f, TerrainChunkCodec codec) throws IOException {
+        File tmp = TerrainRegionFile.tempFile(f);
+        int[] color = new int[256];
+        short[] topY = new short[256];
+
+        try (TerrainRegionFile in = TerrainRegionFile.openReadOnly(f);
+             TerrainRegionFile out = TerrainRegionFile.create(tmp)) {
+            if (in == null) return;
+
+            for (int i = 0; i < TerrainRegionFile.CHUNKS; i++) {
+                if (in.read(i, codec, color, topY) != TerrainRegionFile.READ_OK) continue;
+                byte[] payload = in.readPayload(i);
+                if (payload != null) out.write(i, payload, payload.length, in.stamp(i));
+            }
+        }
+        TerrainRegionFile.replace(tmp, f);
+    }
+
+    // ---------------------------------------------------------------------
+    // migrate
+    // ---------------------------------------------------------------------
+
+    static int migrate(List<File> regions, int toVersion) throws InterruptedException {
+        AtomicInteger converted = new AtomicInteger();
+        int bad = runAll(regions, f -> {
+            int version = TerrainRegionFile.detectVersion(f);
+            if (version == 0 || version == toVersion) return true;
+
+            TerrainChunkCodec codec = CODECS.get();
+            if (toVersion == TerrainRegionFile.VERSION) {
+                // open() converts v1 and v2 in place
+                try (TerrainRegionFile ignored = TerrainRegionFile.open(f, false, codec)) {
+                    converted.incrementAndGet();
+                }
+            } else {
+                TerrainRegionFile.downgradeV1(f, codec);
+                // older builds have no LOD sidecars and would show stale ones after upgrading again
+                Files.deleteIfExists(lodFile(f).toPath());
+                converted.incrementAndGet();
+            }
+            return true;
+        });
+        System.out.println("migrate: " + converted.get() + " of " + regions.size() + " regions converted to v" + toVersion);
+        return bad;
+    }
+
+    // ---------------------------------------------------------------------
+    // merge
+    // ---------------------------------------------------------------------
+
+    /**
+     * Merge cache roots (or cache directories) into target, matching directories by their path below
+     * each source. Per chunk the newer write stamp wins. Changed regions lose their LOD sidecar, which
+     * the game rebuilds from the chunks on first view.
+     */
+    static int merge(File target, List<File> sources) throws InterruptedException {
+        // target region file -> source region files, so one task owns each target file
+        LinkedHashMap<File, List<File>> plan = new LinkedHashMap<>();
+        HashMap<File, List<File>> dirs = new HashMap<>();   // target dir -> source dirs
+        for (File source : sources) {
+            for (File f : files(List.of(source.getPath()))) {
+                String rel = source.toPath().relativize(f.toPath()).toString();
+                File t = new File(target, rel);
+                plan.computeIfAbsent(t, k -> new ArrayList<>()).add(f);
+                List<File> from = dirs.computeIfAbsent(t.getParentFile(), k -> new ArrayList<>());
+                if (!from.contains(f.getParentFile())) from.add(f.getParentFile());
+            }
+        }
+
+        // meta.properties and access times, before the region tasks start writing
+        for (Map.Entry<File, List<File>> e : dirs.entrySet()) {
+            File dir = e.getKey();
+            //noinspection ResultOfMethodCallIgnored
+            dir.mkdirs();
+            File meta = new File(dir, META_FILE);
+            for (File src : e.getValue()) {
+                File srcMeta = new File(src, META_FILE);
+                if (meta.isFile() || !srcMeta.isFile()) continue;
+                try {
+                    Files.copy(srcMeta.toPath(), meta.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException ex) {
+                    System.out.println(dir + ": meta copy failed: " + ex);
+                }
+            }
+        }
+
+        AtomicInteger copied = new AtomicInteger();
+        int bad = runAll(new ArrayList<>(plan.keySet()), t -> {
+            TerrainChunkCodec codec = CODECS.get();
+            int[] color = new int[256];
+            short[] topY = new short[256];
+            int changed = 0;
+
+            try (TerrainRegionFile out = TerrainRegionFile.open(t, true, codec)) {
+                for (File src : plan.get(t)) {
+                    if (TerrainRegionFile.detectVersion(src) == 1) {
+                        System.out.println(src + ": v1 format skipped (run migrate on the source first)");
+                        continue;
+                    }
+                    try (TerrainRegionFile in = TerrainRegionFile.openReadOnly(src)) {
+                        if (in == null) continue;
+
+                        for (int i = 0; i < TerrainRegionFile.CHUNKS; i++) {
+                            if (!in.isBuilt(i)) continue;
+                            if (out.isBuilt(i) && out.stamp(i) >= in.stamp(i)) continue;
+                            if (in.read(i, codec, color, topY) != TerrainRegionFile.READ_OK) continue;
+
+                            byte[] payload = in.readPayload(i);
+                            if (payload == null) continue;
+                            out.write(i, payload, payload.length, in.stamp(i));
+                            changed++;
+                        }
+                    }
+                }
+                out.flushHeader();
+            }
+
+            if (changed > 0) {
+                Files.deleteIfExists(lodFile(t).toPath());
+                copied.addAndGet(changed);
+            }
+            return true;
+        });
+
+        for (Map.Entry<File, List<File>> e : dirs.entrySet()) {
+            for (File src : e.getValue()) {
+                Map<Long, Integer> access = TerrainAccessIndex.read(src);
+                if (!access.isEmpty()) TerrainAccessIndex.merge(e.getKey(), access);
+            }
+        }
+
+        System.out.println("merge: " + plan.size() + " regions, " + copied.get() + " chunks copied into " + target);
+        return bad;
+    }
+
+    // ---------------------------------------------------------------------
+    // helpers
+    // ---------------------------------------------------------------------
+
+    private interface RegionTask {
+        /**
+         * Returns false if the region has a problem worth a non-zero exit code.
+         */
+        boolean run(File region) throws IOException;
+    }
+
+    /**
+     * Run a task per region on all cores; returns how many failed or reported a problem.
+     */
+    private static int runAll(List<File> regions, RegionTask task) throws InterruptedException {
+        int threads = Math.max(1, Math.min(regions.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Callable<Boolean>> calls = new ArrayList<>(regions.size());
+            for (File f : regions) {
+                calls.add(() -> {
+                    try {
+                        return task.run(f);
+                    } catch (IOException e) {
+                        System.out.println(f + ": " + e);
+                        return false;
+                    }
+                });
+            }
+
+            int bad = 0;
+            for (Future<Boolean> r : pool.invokeAll(calls)) {
+                try {
+                    if (!r.get()) bad++;
+                } catch (ExecutionException e) {
+                    System.out.println("task failed: " + e.getCause());
+                    bad++;
+                }
+            }
+            return bad;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Every r.x.z.tfc at or below the given paths.
+     */
+    private static List<File> files(List<String> paths) {
+        ArrayList<File> out = new ArrayList<>();
+        for (String p : paths) collect(new File(p), out);
+        return out;
+    }
+
+    private static void collect(File f, List<File> out) {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children == null) return;
+            Arrays.sort(children);
+            for (File c : children) collect(c, out);
+        } else if (f.isFile() && f.getName().startsWith("r.") && f.getName().endsWith(".tfc")) {
+            out.add(f);
+        }
+    }
+
+    private static int intOption(List<String> args, String name, int def) {
+        int i = args.indexOf(name);
+        if (i < 0) return def;
+        if (i + 1 >= args.size()) throw new IllegalArgumentException(name + " needs a value");
+
+        int v = Integer.parseInt(args.get(i + 1));
+        args.remove(i + 1);
+        args.remove(i);
+        return v;
+    }
+
+    private static File lodFile(File region) {
+        String name = region.getName();
+        return new File(region.getParentFile(), name.substring(0, name.length() - 4) + ".lod");
+    }
+
+    private static void deleteRegion(File f) throws IOException {
+        Files.deleteIfExists(f.toPath());
+        Files.deleteIfExists(lodFile(f).toPath());
+    }
+}
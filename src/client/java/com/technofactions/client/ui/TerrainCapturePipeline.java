@@ -0,0 +1,134 @@
+package com.technofactions.client.ui;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Off-thread half of surface capture for {@link TerrainSurfaceCache}.
+ *
+ * The client thread takes a {@link Snapshot} (surface heights + map color ids, see {@link TerrainChunkSampler})
+ * and submits it; worker threads turn it into colors, hand the chunk to the write queue and publish the result.
+ * The client thread drains results with {@link #poll()} on tick.
+ *
+ * One pipeline per active cache directory; {@link #close()} finishes queued work before the writer closes.
+ */
+final class TerrainCapturePipeline {
+    private static final int THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Main-thread copy of what a chunk capture needs: surface map color id, topY and biome tint per column,
+     * plus the heights along the west and north borders for relief shading (Short.MIN_VALUE = not cached yet).
+     */
+    static final class Snapshot {
+        final int cx;
+        final int cz;
+        final byte[] mapColor = new byte[256];
+        final short[] topY = new short[256];
+        final int[] tint = new int[256];
+        final short[] westTopY = new short[16];    // column x = 15 of chunk cx - 1, by z
+        final short[] northTopY = new short[16];   // row z = 15 of chunk cz - 1, by x
+        boolean westKnown;
+        boolean northKnown;
+
+        // what the tile held when a cached chunk is captured again, null on a first capture
+        int[] cachedColor;
+        short[] cachedTopY;
+
+        Snapshot(int cx, int cz) {
+            this.cx = cx;
+            this.cz = cz;
+        }
+    }
+
+    /**
+     * Finished chunk, ready to be put into a tile on the client thread.
+     */
+    static final class Result {
+        final int cx;
+        final int cz;
+        final int[] color;
+        final short[] topY;
+        final boolean westKnown;
+        final boolean northKnown;
+        final boolean unchanged;    // same as the cached copy: neither written nor worth publishing
+
+        Result(Snapshot s, int[] color, boolean unchanged) {
+            this.cx = s.cx;
+            this.cz = s.cz;
+            this.color = color;
+            this.topY = s.topY;
+            this.westKnown = s.westKnown;
+            this.northKnown = s.northKnown;
+            this.unchanged = unchanged;
+        }
+    }
+
+    private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+    private final TerrainWriteQueue writer;
+    private final ExecutorService pool;
+    private final ConcurrentLinkedQueue<Result> done = new ConcurrentLinkedQueue<>();
+
+    TerrainCapturePipeline(TerrainWriteQueue writer) {
+        this.writer = writer;
+        this.pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "TechnoFactions-SurfaceCapture-" + THREAD_IDS.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void submit(Snapshot s) {
+        try {
+            pool.execute(() -> process(s));
+        } catch (Throwable t) {
+            System.out.println("[TechnoFactions] TerrainCapturePipeline submit failed: " + t);
+        }
+    }
+
+    /**
+     * Next finished chunk, or null if none is ready.
+     */
+    Result poll() {
+        return done.poll();
+    }
+
+    /**
+     * Stop accepting snapshots and wait for queued ones to reach the write queue.
+     */
+    void close() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+                System.out.println("[TechnoFactions] TerrainCapturePipeline drain timed out");
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        done.clear();
+    }
+
+    private void process(Snapshot s) {
+        try {
+            int[] color = new int[256];
+            for (int i = 0; i < 256; i++) color[i] = TerrainSurfaceCache.surfaceArgb(s.mapColor[i], s.topY[i], s.tint[i]);
+            TerrainSurfaceCache.applyRelief(color, s.topY, s.westTopY, s.northTopY);
+
+            if (s.cachedColor != null && Arrays.equals(color, s.cachedColor) && Arrays.equals(s.topY, s.cachedTopY)) {
+                done.add(new Result(s, color, true));
+                return;
+            }
+
+            // the arrays are ours alone from here on, so the writer can take them without copying
+            writer.submitOwned(s.cx, s.cz, color, s.topY);
+            done.add(new Result(s, color, false));
+        } catch (Throwable t) {
+            System.out.println("[TechnoFactions] TerrainCapturePipeline capture failed (" + s.cx + "," + s.cz + "): " + t);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.technofactions.client.ui;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact encoding for one cached chunk (256 ARGB colors + 256 topY).
+ *
+ * Raw layout before deflate:
+ *   u8 mode (0 = palette, 1 = raw colors)
+ *   palette: u8 (count - 1), count * int ARGB, 256 * u8 index
+ *   raw:     256 * int ARGB (decoded only: a chunk's 256 columns always fit a palette)
+ *   i16 first topY, then 255 zigzag varints: topY minus its west neighbor (north for the first column)
+ *
+ * Not thread safe; each thread that encodes or decodes owns its own codec.
+ */
+final class TerrainChunkCodec {
+    private static final int MODE_PALETTE = 0;
+    private static final int MODE_RAW = 1;
+
+    // worst case (256-color palette): mode + count + palette + indices + first height + 255 three-byte varints
+    private static final int RAW_MAX = 1 + 1 + 256 * 4 + 256 + 2 + 255 * 3;
+
+    private final Deflater deflater = new Deflater(6);
+    private final Inflater inflater = new Inflater();
+
+    private final byte[] raw = new byte[RAW_MAX];
+    private byte[] out = new byte[RAW_MAX + 64];
+    private byte[] in = new byte[1024];
+
+    // palette build: open addressing on color -> slot
+    private final int[] palette = new int[256];
+    private final int[] hashKeys = new int[512];
+    private final short[] hashSlots = new short[512];
+    private final byte[] indices = new byte[256];
+
+    /**
+     * Encode and compress; the result is {@link #output()}[0, returned length).
+     */
+    int encode(int[] color, short[] topY) {
+        int p = 0;
+
+        int count = buildPalette(color);
+        if (count > 0) {
+            raw[p++] = MODE_PALETTE;
+            raw[p++] = (byte) (count - 1);
+            for (int i = 0; i < count; i++) p = putInt(raw, p, palette[i]);
+            System.arraycopy(indices, 0, raw, p, 256);
+            p += 256;
+        } else {
+            raw[p++] = MODE_RAW;
+            for (int i = 0; i < 256; i++) p = putInt(raw, p, color[i]);
+        }
+
+        raw[p++] = (byte) (topY[0] >> 8);
+        raw[p++] = (byte) topY[0];
+        for (int i = 1; i < 256; i++) {
+            int pred = (i & 15) != 0 ? topY[i - 1] : topY[i - 16];
+            int d = topY[i] - pred;
+            int zz = (d << 1) ^ (d >> 31);
+            while ((zz & ~0x7F) != 0) {
+                raw[p++] = (byte) ((zz & 0x7F) | 0x80);
+                zz >>>= 7;
+            }
+            raw[p++] = (byte) zz;
+        }
+
+        deflater.reset();
+        deflater.setInput(raw, 0, p);
+        deflater.finish();
+
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+            n += deflater.deflate(out, n, out.length - n);
+        }
+        return n;
+    }
+
+    byte[] output() {
+        return out;
+    }
+
+    /**
+     * Scratch input buffer of at least len bytes, for callers that read a payload before decoding it.
+     */
+    byte[] input(int len) {
+        if (in.length < len) in = new byte[Math.max(len, in.length * 2)];
+        return in;
+    }
+
+    /**
+     * Decompress and decode. Returns false for corrupt or truncated payloads.
+     */
+    boolean decode(byte[] src, int off, int len, int[] color, short[] topY) {
+        int n;
+        try {
+            inflater.reset();
+            inflater.setInput(src, off, len);
+            n = inflater.inflate(raw, 0, raw.length);
+            if (!inflater.finished()) return false;
+        } catch (DataFormatException e) {
+            return false;
+        }
+
+        int p = 0;
+        if (n < 1) return false;
+        int mode = raw[p++];
+
+        if (mode == MODE_PALETTE) {
+            if (n < p + 1) return false;
+            int count = (raw[p++] & 0xFF) + 1;
+            if (n < p + count * 4 + 256) return false;
+
+            int pal = p;
+            p += count * 4;
+            for (int i = 0; i < 256; i++) {
+                int idx = raw[p++] & 0xFF;
+                if (idx >= count) return false;
+                color[i] = getInt(raw, pal + idx * 4);
+            }
+        } else if (mode == MODE_RAW) {
+            if (n < p + 256 * 4) return false;
+            for (int i = 0; i < 256; i++) {
+                color[i] = getInt(raw, p);
+                p += 4;
+            }
+        } else {
+            return false;
+        }
+
+        if (n < p + 2) return false;
+        topY[0] = (short) (((raw[p] & 0xFF) << 8) | (raw[p + 1] & 0xFF));
+        p += 2;
+
+        for (int i = 1; i < 256; i++) {
+            int zz = 0;
+            int shift = 0;
+            while (true) {
+                if (p >= n || shift > 21) return false;
+                int b = raw[p++];
+                zz |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+                shift += 7;
+            }
+            int d = (zz >>> 1) ^ -(zz & 1);
+            int pred = (i & 15) != 0 ? topY[i - 1] : topY[i - 16];
+            topY[i] = (short) (pred + d);
+        }
+        return p == n;
+    }
+
+    /**
+     * Fills palette/indices; returns the palette size, or 0 if the chunk has more than 256 colors (which
+     * 256 columns cannot have, so encode never writes the raw mode).
+     */
+    private int buildPalette(int[] color) {
+        Arrays.fill(hashSlots, (short) -1);
+        int count = 0;
+
+        for (int i = 0; i < 256; i++) {
+            int c = color[i];
+            int h = (c * 0x9E3779B1) >>> 23;   // 9 bits -> 0..511
+            while (true) {
+                short slot = hashSlots[h];
+                if (slot < 0) {
+                    if (count == 256) return 0;
+                    hashKeys[h] = c;
+                    hashSlots[h] = (short) count;
+                    palette[count] = c;
+                    indices[i] = (byte) count;
+                    count++;
+                    break;
+                }
+                if (hashKeys[h] == c) {
+                    indices[i] = (byte) slot;
+                    break;
+                }
+                h = (h + 1) & 511;
+            }
+        }
+        return count;
+    }
+
+    private static int putInt(byte[] b, int p, int v) {
+        b[p] = (byte) (v >>> 24);
+        b[p + 1] = (byte) (v >>> 16);
+        b[p + 2] = (byte) (v >>> 8);
+        b[p + 3] = (byte) v;
+        return p + 4;
+    }
+
+    private static int getInt(byte[] b, int p) {
+        return ((b[p] & 0xFF) << 24) | ((b[p + 1] & 0xFF) << 16) | ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,280 @@
+package com.technofactions.client.ui;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.MapColor;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.EmptyBlockView;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.biome.Biome;
+import net.minecraft.world.biome.BiomeEffects;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Reads surface heights and surface map colors straight from a loaded {@link WorldChunk}:
+ * its WORLD_SURFACE heightmap and its section palettes, no world lookups per column.
+ *
+ * With a ceiling (Y-slice layers, see {@link TerrainMapLayer}) a column is walked down from the ceiling
+ * to the first solid block below open space; empty sections are skipped whole.
+ *
+ * Biome-tinted blocks (grass, foliage, water) also get their biome's color as a tint, 0 for everything
+ * else. Map colors and tint kinds are cached by raw block state id, biome colors per biome, so a column
+ * costs a biome lookup only when its block is tinted. Grass in biomes with a grass color modifier (swamp
+ * noise, dark forest) is evaluated per column instead. Client thread only.
+ */
+final class TerrainChunkSampler {
+    static final int NO_CEILING = Integer.MAX_VALUE;
+
+    private static final byte NOT_CACHED = -1;
+
+    static final byte TINT_NONE = 0;
+    static final byte TINT_GRASS = 1;
+    static final byte TINT_FOLIAGE = 2;
+    static final byte TINT_WATER = 3;
+
+    // raw block state id -> MapColor id / tint kind, NOT_CACHED until first seen
+    private static byte[] mapColorByState = new byte[0];
+    private static byte[] tintByState = new byte[0];
+
+    // biome -> opaque ARGB per tint kind (index TINT_GRASS..TINT_WATER), 0 = per column (see grassTint)
+    private static final IdentityHashMap<Biome, int[]> biomeTints = new IdentityHashMap<>();
+
+    // last biome cell looked up; neighbouring columns mostly share their 4x4x4 cell
+    private static int lastCellX, lastCellY, lastCellZ;
+    private static int[] lastCellTints = null;
+    private static Biome lastCellBiome = null;
+
+    private TerrainChunkSampler() {}
+
+    /**
+     * Fill 16x16 row-major map color ids and topY (the y above the surface block) for a whole chunk.
+     * Below a ceiling other than {@link #NO_CEILING}; columns without a surface there get topY Short.MIN_VALUE.
+     * tints gets the biome tint per column (see {@link TerrainSurfaceCache#surfaceArgb(int, int, int)}).
+     */
+    static void sample(WorldChunk chunk, int ceiling, byte[] mapColorIds, short[] topY, int[] tints) {
+        Heightmap hm = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+        ChunkSection[] sections = chunk.getSectionArray();
+        int bottomY = chunk.getBottomY();
+        lastCellTints = null;
+
+        for (int li = 0; li < 256; li++) {
+            if (ceiling == NO_CEILING) sampleColumn(chunk, hm, sections, bottomY, li, mapColorIds, topY, tints);
+            else sampleSliceColumn(chunk, hm, sections, bottomY, ceiling, li, mapColorIds, topY, tints);
+        }
+    }
+
+    /**
+     * Same as {@link #sample} for the columns set in a 256-bit mask.
+     */
+    static void sample(WorldChunk chunk, int ceiling, long[] mask, byte[] mapColorIds, short[] topY, int[] tints) {
+        Heightmap hm = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+        ChunkSection[] sections = chunk.getSectionArray();
+        int bottomY = chunk.getBottomY();
+        lastCellTints = null;
+
+        for (int w = 0; w < 4; w++) {
+            long bits = mask[w];
+            while (bits != 0) {
+                int li = (w << 6) | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (ceiling == NO_CEILING) sampleColumn(chunk, hm, sections, bottomY, li, mapColorIds, topY, tints);
+                else sampleSliceColumn(chunk, hm, sections, bottomY, ceiling, li, mapColorIds, topY, tints);
+            }
+        }
+    }
+
+    private static void sampleColumn(WorldChunk chunk, Heightmap hm, ChunkSection[] sections, int bottomY, int li, byte[] mapColorIds, short[] topY, int[] tints) {
+        int lx = li & 15;
+        int lz = li >> 4;
+
+        int top = hm.get(lx, lz);
+        int y = Math.max(bottomY, top - 1);
+
+        // bottomY is section aligned, so this is the chunk's own section index
+        int si = (y - bottomY) >> 4;
+
+        byte id = (byte) MapColor.CLEAR.id;
+        int tint = 0;
+        if (si >= 0 && si < sections.length) {
+            ChunkSection s = sections[si];
+            if (s != null && !s.isEmpty()) {
+                BlockState state = s.getBlockState(lx, y & 15, lz);
+                id = mapColorId(state);
+                tint = tint(chunk, state, lx, y, lz);
+            }
+        }
+
+        mapColorIds[li] = id;
+        tints[li] = tint;
+        topY[li] = (short) Math.max(Short.MIN_VALUE + 1, Math.min(Short.MAX_VALUE, top));
+    }
+
+    /**
+     * First solid block at or below the ceiling that has open space above it. Starting inside solid
+     * blocks (a roof) means walking down to the first air first; starting above the heightmap top,
+     * the surface block itself qualifies.
+     */
+    private static void sampleSliceColumn(WorldChunk chunk, Heightmap hm, ChunkSection[] sections, int bottomY, int ceiling, int li, byte[] mapColorIds, short[] topY, int[] tints) {
+        int lx = li & 15;
+        int lz = li >> 4;
+
+        int top = hm.get(lx, lz);
+        int y = Math.min(ceiling, top - 1);
+        boolean open = y == top - 1;
+
+        mapColorIds[li] = (byte) MapColor.CLEAR.id;
+        topY[li] = Short.MIN_VALUE;
+        tints[li] = 0;
+
+        while (y >= bottomY) {
+            int si = (y - bottomY) >> 4;
+            ChunkSection s = si < sections.length ? sections[si] : null;
+
+            if (s == null || s.isEmpty()) {
+                open = true;
+                y = bottomY + (si << 4) - 1;
+                continue;
+            }
+
+            BlockState state = s.getBlockState(lx, y & 15, lz);
+            if (state.isAir()) {
+                open = true;
+            } else if (open) {
+                mapColorIds[li] = mapColorId(state);
+                tints[li] = tint(chunk, state, lx, y, lz);
+                topY[li] = (short) Math.max(Short.MIN_VALUE + 1, Math.min(Short.MAX_VALUE, y + 1));
+                return;
+            }
+            y--;
+        }
+    }
+
+    /**
+     * Forget cached biome colors; biome instances are replaced on every join.
+     */
+    static void clearBiomeTints() {
+        biomeTints.clear();
+        lastCellTints = null;
+        lastCellBiome = null;
+    }
+
+    /**
+     * Biome tint of a surface block at chunk-local (lx, y, lz), 0 if the block is not tinted.
+     */
+    private static int tint(WorldChunk chunk, BlockState state, int lx, int y, int lz) {
+        byte kind = tintKind(state);
+        if (kind == TINT_NONE) return 0;
+
+        int cellX = (chunk.getPos().x << 2) + (lx >> 2);
+        int cellY = y >> 2;
+        int cellZ = (chunk.getPos().z << 2) + (lz >> 2);
+
+        if (lastCellTints == null || cellX != lastCellX || cellY != lastCellY || cellZ != lastCellZ) {
+            RegistryEntry<Biome> biome = chunk.getBiomeForNoiseGen(cellX, cellY, cellZ);
+            lastCellBiome = biome != null ? biome.value() : null;
+            lastCellTints = lastCellBiome != null ? biomeTints(lastCellBiome) : null;
+            lastCellX = cellX;
+            lastCellY = cellY;
+            lastCellZ = cellZ;
+        }
+        if (lastCellTints == null) return 0;
+
+        int t = lastCellTints[kind];
+        return t != 0 ? t : grassTint(lastCellBiome, (chunk.getPos().x << 4) + lx, (chunk.getPos().z << 4) + lz);
+    }
+
+    private static int[] biomeTints(Biome biome) {
+        int[] t = biomeTints.get(biome);
+        if (t == null) {
+            t = computeBiomeTints(biome);
+            biomeTints.put(biome, t);
+        }
+        return t;
+    }
+
+    /**
+     * Opaque ARGB per tint kind (index TINT_GRASS..TINT_WATER) of a biome. The grass entry is 0 if the biome
+     * has a grass color modifier: its color depends on the position, see {@link #grassTint}.
+     * Uncached, safe off the client thread.
+     */
+    static int[] computeBiomeTints(Biome biome) {
+        int[] t = new int[4];
+        t[TINT_GRASS] = hasGrassModifier(biome) ? 0 : 0xFF000000 | biome.getGrassColorAt(0.0, 0.0);
+        t[TINT_FOLIAGE] = 0xFF000000 | biome.getFoliageColor();
+        t[TINT_WATER] = 0xFF000000 | biome.getWaterColor();
+        return t;
+    }
+
+    /**
+     * Opaque grass color of a biome at block (x, z), modifier included. The modifiers only read static
+     * noise, so this is safe off the client thread.
+     */
+    static int grassTint(Biome biome, int x, int z) {
+        return 0xFF000000 | biome.getGrassColorAt(x, z);
+    }
+
+    private static boolean hasGrassModifier(Biome biome) {
+        return biome.getEffects().getGrassColorModifier() != BiomeEffects.GrassColorModifier.NONE;
+    }
+
+    private static byte tintKind(BlockState state) {
+        int raw = Block.getRawIdFromState(state);
+        if (raw < 0) return resolveTintKind(state);
+
+        if (raw >= tintByState.length) {
+            int n = Math.max(raw + 1, tintByState.length * 2);
+            int old = tintByState.length;
+            tintByState = Arrays.copyOf(tintByState, n);
+            Arrays.fill(tintByState, old, n, NOT_CACHED);
+        }
+
+        byte kind = tintByState[raw];
+        if (kind == NOT_CACHED) {
+            kind = resolveTintKind(state);
+            tintByState[raw] = kind;
+        }
+        return kind;
+    }
+
+    // the blocks vanilla colors by biome; spruce, birch, cherry and azalea leaves have fixed colors.
+    // Uncached, safe off the client thread.
+    static byte resolveTintKind(BlockState state) {
+        if (state.isOf(Blocks.GRASS_BLOCK) || state.isOf(Blocks.SHORT_GRASS) || state.isOf(Blocks.TALL_GRASS)
+                || state.isOf(Blocks.FERN) || state.isOf(Blocks.LARGE_FERN) || state.isOf(Blocks.SUGAR_CANE)) {
+            return TINT_GRASS;
+        }
+        if (state.isOf(Blocks.OAK_LEAVES) || state.isOf(Blocks.JUNGLE_LEAVES) || state.isOf(Blocks.ACACIA_LEAVES)
+                || state.isOf(Blocks.DARK_OAK_LEAVES) || state.isOf(Blocks.MANGROVE_LEAVES) || state.isOf(Blocks.VINE)) {
+            return TINT_FOLIAGE;
+        }
+        if (state.isOf(Blocks.WATER) || state.isOf(Blocks.BUBBLE_COLUMN)) {
+            return TINT_WATER;
+        }
+        return TINT_NONE;
+    }
+
+    private static byte mapColorId(BlockState state) {
+        int raw = Block.getRawIdFromState(state);
+        if (raw < 0) return (byte) state.getMapColor(EmptyBlockView.INSTANCE, BlockPos.ORIGIN).id;
+
+        if (raw >= mapColorByState.length) {
+            int n = Math.max(raw + 1, mapColorByState.length * 2);
+            int old = mapColorByState.length;
+            mapColorByState = Arrays.copyOf(mapColorByState, n);
+            Arrays.fill(mapColorByState, old, n, NOT_CACHED);
+        }
+
+        byte id = mapColorByState[raw];
+        if (id == NOT_CACHED) {
+            id = (byte) state.getMapColor(EmptyBlockView.INSTANCE, BlockPos.ORIGIN).id;
+            mapColorByState[raw] = id;
+        }
+        return id;
+    }
+}
@@ -0,0 +1,67 @@
+package com.technofactions.client.ui;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Last built frame of a map per cache session (see {@link TerrainSurfaceCache#activeKey()}), so switching
+ * back to a dimension shows where you left off while the cache catches up. Holds as many sessions as the
+ * cache keeps resident; client thread only.
+ */
+final class TerrainFrameStash {
+    static final class Frame {
+        final int[] argb;
+        int[] heights;                  // null for maps that keep no heights
+        int centerX;
+        int centerZ;
+        int blocksPerPixel;
+
+        private Frame(int size) {
+            this.argb = new int[size];
+        }
+    }
+
+    private final int size;
+    private final LinkedHashMap<String, Frame> frames;
+
+    /**
+     * @param size  pixels per frame
+     */
+    TerrainFrameStash(int size) {
+        this.size = size;
+        this.frames = new LinkedHashMap<>(8, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Frame> eldest) {
+                return size() > TerrainSurfaceCache.residentSessions();
+            }
+        };
+    }
+
+    /**
+     * Copy a frame in under key, reusing the arrays of a frame stashed earlier for it.
+     */
+    void save(String key, int[] argb, int[] heights, int centerX, int centerZ, int blocksPerPixel) {
+        if (key == null) return;
+
+        Frame f = frames.get(key);
+        if (f == null) {
+            f = new Frame(size);
+            frames.put(key, f);
+        }
+        System.arraycopy(argb, 0, f.argb, 0, size);
+        if (heights != null) {
+            if (f.heights == null) f.heights = new int[size];
+            System.arraycopy(heights, 0, f.heights, 0, size);
+        }
+        f.centerX = centerX;
+        f.centerZ = centerZ;
+        f.blocksPerPixel = blocksPerPixel;
+    }
+
+    /**
+     * Frame stashed for key, or null.
+     */
+    Frame get(String key) {
+        return key != null ? frames.get(key) : null;
+    }
+}
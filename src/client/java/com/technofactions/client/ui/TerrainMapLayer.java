@@ -0,0 +1,107 @@
+package com.technofactions.client.ui;
+
+import net.minecraft.client.MinecraftClient;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Properties;
+
+/**
+ * Which layer the maps show per dimension: the surface, or a Y-slice (the first solid surface below a
+ * ceiling, for the nether roof and underground bases).
+ *
+ * A slice is its own cache in a slice_<y>/ subdirectory of the dimension's cache directory, same region
+ * format, captured and persisted like the surface. Switching layers never re-captures what is on disk.
+ *
+ * Defaults live in config/technofactions/minimap_layers.properties (read once): the nether is sliced
+ * automatically, other dimensions show the surface until toggled. Client thread only.
+ */
+final class TerrainMapLayer {
+    static final String CONFIG_FILE = "minimap_layers.properties";
+
+    // ceiling of the surface layer: no ceiling, the WORLD_SURFACE heightmap decides
+    static final int SURFACE = TerrainChunkSampler.NO_CEILING;
+
+    private static final int DEFAULT_SLICE_Y = 48;
+    private static final int DEFAULT_NETHER_SLICE_Y = 100;
+    private static final String NETHER = "minecraft:the_nether";
+
+    private static Properties config = null;
+
+    // dimensions toggled away from their default layer this session
+    private static final HashSet<String> toggled = new HashSet<>();
+
+    private TerrainMapLayer() {}
+
+    /**
+     * Ceiling of the layer shown in a dimension, or {@link #SURFACE}.
+     */
+    static int ceiling(String dimension) {
+        boolean slice = autoSlice(dimension) != toggled.contains(dimension);
+        return slice ? sliceY(dimension) : SURFACE;
+    }
+
+    static void toggle(String dimension) {
+        if (!toggled.remove(dimension)) toggled.add(dimension);
+    }
+
+    /**
+     * Cache subdirectory of a slice layer.
+     */
+    static String dirName(int ceiling) {
+        return "slice_" + ceiling;
+    }
+
+    private static boolean autoSlice(String dimension) {
+        String v = config().getProperty("autoSlice." + propertyKey(dimension));
+        return v != null ? Boolean.parseBoolean(v.trim()) : NETHER.equals(dimension);
+    }
+
+    private static int sliceY(String dimension) {
+        String v = config().getProperty("sliceY." + propertyKey(dimension));
+        if (v == null) v = config().getProperty("sliceY.default");
+        try {
+            if (v != null) return Integer.parseInt(v.trim());
+        } catch (NumberFormatException ignored) {}
+        return NETHER.equals(dimension) ? DEFAULT_NETHER_SLICE_Y : DEFAULT_SLICE_Y;
+    }
+
+    // "minecraft:the_nether" -> "minecraft.the_nether", ':' is a separator in properties files
+    private static String propertyKey(String dimension) {
+        return dimension.replace(':', '.');
+    }
+
+    private static Properties config() {
+        if (config != null) return config;
+
+        File f = new File(MinecraftClient.getInstance().runDirectory, "config/technofactions/" + CONFIG_FILE);
+        Properties p = new Properties();
+
+        if (f.isFile()) {
+            try (Reader r = new FileReader(f)) {
+                p.load(r);
+            } catch (IOException e) {
+                System.out.println("[TechnoFactions] TerrainMapLayer config read failed: " + e);
+            }
+        } else {
+            p.setProperty("sliceY.default", Integer.toString(DEFAULT_SLICE_Y));
+            p.setProperty("sliceY." + propertyKey(NETHER), Integer.toString(DEFAULT_NETHER_SLICE_Y));
+            p.setProperty("autoSlice." + propertyKey(NETHER), "true");
+            //noinspection ResultOfMethodCallIgnored
+            f.getParentFile().mkdirs();
+            try (Writer w = new FileWriter(f)) {
+                p.store(w, "Minimap layers: sliceY.<dimension> = slice ceiling, autoSlice.<dimension> = slice by default");
+            } catch (IOException e) {
+                System.out.println("[TechnoFactions] TerrainMapLayer config write failed: " + e);
+            }
+        }
+
+        config = p;
+        return p;
+    }
+}
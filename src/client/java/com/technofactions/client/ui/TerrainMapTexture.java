@@ -0,0 +1,171 @@
+package com.technofactions.client.ui;
+
+import com.mojang.blaze3d.systems.CommandEncoder;
+import com.mojang.blaze3d.systems.RenderSystem;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.texture.NativeImage;
+import net.minecraft.client.texture.NativeImageBackedTexture;
+import net.minecraft.util.Identifier;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Square map texture that is written a row span at a time and uploaded once per frame, only where it changed.
+ *
+ * Spans go straight into the native image's memory as ABGR, a row at a time. Each row remembers the columns
+ * written since the last {@link #flush()}; rows with the same span are merged into one rectangle and each
+ * rectangle is one sub-image upload. Falls back to setColor / whole-texture uploads if either is unavailable.
+ * Client thread only.
+ */
+final class TerrainMapTexture {
+    // more rectangles than this upload their bounding box instead
+    private static final int MAX_RECTS = 8;
+
+    private final int size;
+    private final NativeImage image;
+    private final NativeImageBackedTexture texture;
+
+    private final int[] abgr;
+
+    // per row, columns [dirtyMin, dirtyMax) written since the last flush; dirtyMin == size when clean
+    private final int[] dirtyMin;
+    private final int[] dirtyMax;
+    private int dirtyTop;
+    private int dirtyBottom;
+
+    private boolean directWrites = true;
+    private boolean partialUploads = true;
+
+    /**
+     * Create and register the texture, filled with fillArgb.
+     */
+    TerrainMapTexture(Identifier id, int size, boolean linear, int fillArgb) {
+        this.size = size;
+        this.image = new NativeImage(size, size, false);
+        this.texture = new NativeImageBackedTexture(id::toString, image);
+        this.abgr = new int[size];
+        this.dirtyMin = new int[size];
+        this.dirtyMax = new int[size];
+        clearDirty();
+
+        MinecraftClient.getInstance().getTextureManager().registerTexture(id, texture);
+        try { texture.setFilter(linear, false); } catch (Throwable ignored) {}
+
+        Arrays.fill(abgr, argbToAbgr(fillArgb));
+        for (int y = 0; y < size; y++) putRow(y, 0, abgr, size);
+        texture.upload();
+    }
+
+    /**
+     * Write count ARGB pixels from src[srcOff..] to row y starting at column x.
+     */
+    void writeRow(int y, int x, int[] src, int srcOff, int count) {
+        if (count <= 0) return;
+        for (int i = 0; i < count; i++) abgr[i] = argbToAbgr(src[srcOff + i]);
+        putRow(y, x, abgr, count);
+
+        if (x < dirtyMin[y]) dirtyMin[y] = x;
+        if (x + count > dirtyMax[y]) dirtyMax[y] = x + count;
+        if (y < dirtyTop) dirtyTop = y;
+        if (y + 1 > dirtyBottom) dirtyBottom = y + 1;
+    }
+
+    /**
+     * Write a whole size*size row-major ARGB frame.
+     */
+    void writeAll(int[] src) {
+        for (int y = 0; y < size; y++) writeRow(y, 0, src, y * size, size);
+    }
+
+    /**
+     * Upload what changed since the last flush.
+     */
+    void flush() {
+        if (dirtyTop >= dirtyBottom) return;
+
+        if (partialUploads) {
+            try {
+                uploadDirty();
+            } catch (Throwable t) {
+                partialUploads = false;
+                System.out.println("[TechnoFactions] Partial map texture uploads unavailable, uploading whole textures: " + t);
+                texture.upload();
+            }
+        } else {
+            texture.upload();
+        }
+        clearDirty();
+    }
+
+    private void uploadDirty() {
+        CommandEncoder encoder = RenderSystem.getDevice().createCommandEncoder();
+
+        int rects = 0;
+        int minX = size, maxX = 0;
+        for (int y = dirtyTop; y < dirtyBottom; ) {
+            if (dirtyMin[y] >= dirtyMax[y]) { y++; continue; }
+            int end = sameSpanEnd(y);
+            rects++;
+            minX = Math.min(minX, dirtyMin[y]);
+            maxX = Math.max(maxX, dirtyMax[y]);
+            y = end;
+        }
+
+        if (rects > MAX_RECTS) {
+            upload(encoder, minX, dirtyTop, maxX - minX, dirtyBottom - dirtyTop);
+            return;
+        }
+
+        for (int y = dirtyTop; y < dirtyBottom; ) {
+            if (dirtyMin[y] >= dirtyMax[y]) { y++; continue; }
+            int end = sameSpanEnd(y);
+            upload(encoder, dirtyMin[y], y, dirtyMax[y] - dirtyMin[y], end - y);
+            y = end;
+        }
+    }
+
+    // first row after y whose dirty span differs from row y's
+    private int sameSpanEnd(int y) {
+        int end = y + 1;
+        while (end < dirtyBottom && dirtyMin[end] == dirtyMin[y] && dirtyMax[end] == dirtyMax[y]) end++;
+        return end;
+    }
+
+    private void upload(CommandEncoder encoder, int x, int y, int w, int h) {
+        encoder.writeToTexture(texture.getGlTexture(), image, 0, 0, x, y, w, h, x, y);
+    }
+
+    private void putRow(int y, int x, int[] px, int count) {
+        if (directWrites) {
+            try {
+                long ptr = image.imageId();
+                if (ptr != 0L) {
+                    IntBuffer dst = MemoryUtil.memIntBuffer(ptr + ((long) y * size + x) * 4L, count);
+                    dst.put(px, 0, count);
+                    return;
+                }
+            } catch (Throwable t) {
+                directWrites = false;
+                System.out.println("[TechnoFactions] Direct map texture writes unavailable, using setColor: " + t);
+            }
+        }
+        for (int i = 0; i < count; i++) image.setColor(x + i, y, px[i]);
+    }
+
+    private void clearDirty() {
+        Arrays.fill(dirtyMin, size);
+        Arrays.fill(dirtyMax, 0);
+        dirtyTop = size;
+        dirtyBottom = 0;
+    }
+
+    private static int argbToAbgr(int argb) {
+        int a = (argb >>> 24) & 0xFF;
+        int r = (argb >>> 16) & 0xFF;
+        int g = (argb >>> 8) & 0xFF;
+        int b = (argb) & 0xFF;
+        return (a << 24) | (b << 16) | (g << 8) | r;
+    }
+}
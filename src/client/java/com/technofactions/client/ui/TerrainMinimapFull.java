@@ -2,8 +2,6 @@ package com.technofactions.client.ui;
 
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ServerInfo;
-import net.minecraft.client.texture.NativeImage;
-import net.minecraft.client.texture.NativeImageBackedTexture;
 import net.minecraft.client.world.ClientWorld;
 import net.minecraft.util.Identifier;
 
@@ -34,10 +32,6 @@ private static final int MAX_BLOCKS_ACROSS = 2048;
 
     private static final int SUPERSAMPLE = 1;
 
-    // Upload cadence
-    private static final int UPLOAD_EVERY_ROWS_NORMAL = 8;
-    private static final int UPLOAD_EVERY_ROWS_BOOST  = 4; // 🔥 reduced GPU spam
-
     private static int rowsPerTick = 32;
     private static final int ROWS_MIN = 16;
     private static final int ROWS_MAX = 224;
@@ -47,9 +41,10 @@ private static final int MAX_BLOCKS_ACROSS = 2048;
     private static boolean boost = false;
 
     private static final Identifier TEX_ID = Identifier.of("technofactions", "minimap_full");
-    private static NativeImageBackedTexture texture;
-    private static NativeImage image;
+    private static TerrainMapTexture texture;
 
+    // last frame per server/dimension, shown again when switching back
+    private static final TerrainFrameStash stash = new TerrainFrameStash(SAMPLE_SIZE * SAMPLE_SIZE);
     private static String lastSessionKey = null;
 
     private TerrainMinimapFull() {}
@@ -79,11 +74,18 @@ private static final int MAX_BLOCKS_ACROSS = 2048;
 
     ensureTexture();
     TerrainSurfaceCache.ensureWorld(world);
+    TerrainSurfaceCache.focusViewport(centerX, centerZ);
 
-    String sessionKey = computeSessionKey(world);
-    if (!sessionKey.equals(lastSessionKey)) {
+    String sessionKey = TerrainSurfaceCache.activeKey();
+    if (sessionKey != null && !sessionKey.equals(lastSessionKey)) {
+        if (lastSessionKey != null && targetCenterX != Integer.MIN_VALUE) {
+            stash.save(lastSessionKey, FRONT, FRONT_H, targetCenterX, targetCenterZ, blocksPerPixel);
+        }
         lastSessionKey = sessionKey;
-        hardResetFrames();
+
+        TerrainFrameStash.Frame f = stash.get(sessionKey);
+        if (f != null) restoreFrame(f);
+        else hardResetFrames();
     }
 
     if (blocksPerPixel != requestedBlocksPerPixel) {
@@ -123,6 +125,23 @@ private static final int MAX_BLOCKS_ACROSS = 2048;
         stepBuild();
     }
 }
+    /**
+     * Show the frame last built for this session; the usual move/zoom checks rebuild from it.
+     */
+    private static void restoreFrame(TerrainFrameStash.Frame f) {
+        System.arraycopy(f.argb, 0, FRONT, 0, FRONT.length);
+        System.arraycopy(f.heights, 0, FRONT_H, 0, FRONT_H.length);
+
+        texture.writeAll(FRONT);
+        texture.flush();
+
+        targetCenterX = f.centerX;
+        targetCenterZ = f.centerZ;
+        blocksPerPixel = f.blocksPerPixel;
+        rebuilding = false;
+        buildRow = 0;
+    }
+
     private static void hardResetFrames() {
         for (int i = 0; i < FRONT.length; i++) {
             FRONT[i] = UNKNOWN_ARGB;
@@ -131,8 +150,8 @@ private static final int MAX_BLOCKS_ACROSS = 2048;
             BACK_H[i] = Integer.MIN_VALUE;
         }
 
-        writeWholeArrayToTexture(FRONT);
-        texture.upload();
+        texture.writeAll(FRONT);
+        texture.flush();
 
         targetCenterX = Integer.MIN_VALUE;
         targetCenterZ = Integer.MIN_VALUE;
@@ -143,20 +162,8 @@ private static final int MAX_BLOCKS_ACROSS = 2048;
     private static void ensureTexture() {
         if (texture != null) return;
 
-        image = new NativeImage(SAMPLE_SIZE, SAMPLE_SIZE, false);
-        texture = new NativeImageBackedTexture(() -> TEX_ID.toString(), image);
-
-        MinecraftClient.getInstance().getTextureManager().registerTexture(TEX_ID, texture);
-
         // 🔥 Enable linear filtering for smoother scaling
-        texture.setFilter(true, false);
-
-        for (int y = 0; y < SAMPLE_SIZE; y++) {
-            for (int x = 0; x < SAMPLE_SIZE; x++) {
-                image.setColor(x, y, argbToAbgr(UNKNOWN_ARGB));
-            }
-        }
-        texture.upload();
+        texture = new TerrainMapTexture(TEX_ID, SAMPLE_SIZE, true, UNKNOWN_ARGB);
     }
 
     private static void startRebuild(int cx, int cz, boolean seedFromFront) {
@@ -187,14 +194,12 @@ private static final int MAX_BLOCKS_ACROSS = 2048;
     }
 
     private static final Sample tmp = new Sample();
-    private static final TerrainSurfaceCache.Sample cacheTmp = new TerrainSurfaceCache.Sample();
 
     private static void stepBuild() {
         int half = SAMPLE_SIZE / 2;
-        int uploadEvery = boost ? UPLOAD_EVERY_ROWS_BOOST : UPLOAD_EVERY_ROWS_NORMAL;
+        int level = TerrainSurfaceCache.levelFor(blocksPerPixel);
 
         int rows = 0;
-        int rowsSinceUpload = 0;
 
         while (rows < rowsPerTick && buildRow < SAMPLE_SIZE) {
 
@@ -202,33 +207,17 @@ private static final int MAX_BLOCKS_ACROSS = 2048;
             int baseZ = targetCenterZ + (sy - half) * blocksPerPixel;
             int rowBase = sy * SAMPLE_SIZE;
 
-            for (int sx = 0; sx < SAMPLE_SIZE; sx++) {
-                int baseX = targetCenterX + (sx - half) * blocksPerPixel;
-                int idx = rowBase + sx;
-
-                if (TerrainSurfaceCache.read(baseX, baseZ, cacheTmp)) {
-                    BACK[idx] = cacheTmp.argb;
-                    BACK_H[idx] = cacheTmp.topY;
-                } else {
-                    BACK[idx] = UNKNOWN_ARGB;
-                    BACK_H[idx] = Integer.MIN_VALUE;
-                }
-            }
+            int startX = targetCenterX - half * blocksPerPixel;
+            TerrainSurfaceCache.readRow(startX, baseZ, SAMPLE_SIZE, blocksPerPixel, level, UNKNOWN_ARGB, BACK, BACK_H, rowBase);
 
-            applySlopeShadingForRow(sy);
-            writeRowToTexture(sy);
+            texture.writeRow(sy, 0, BACK, rowBase, SAMPLE_SIZE);
 
             buildRow++;
             rows++;
-            rowsSinceUpload++;
-
-            if (rowsSinceUpload >= uploadEvery) {
-                texture.upload();
-                rowsSinceUpload = 0;
-            }
         }
 
-        if (rowsSinceUpload > 0) texture.upload();
+        // one upload per frame, of the rows built this tick
+        texture.flush();
 
         if (buildRow >= SAMPLE_SIZE) {
             System.arraycopy(BACK, 0, FRONT, 0, BACK.length);
@@ -236,67 +225,4 @@ private static final int MAX_BLOCKS_ACROSS = 2048;
             rebuilding = false;
         }
     }
-
-    private static void writeWholeArrayToTexture(int[] src) {
-        int i = 0;
-        for (int y = 0; y < SAMPLE_SIZE; y++) {
-            for (int x = 0; x < SAMPLE_SIZE; x++) {
-                image.setColor(x, y, argbToAbgr(src[i++]));
-            }
-        }
-    }
-
-    private static void writeRowToTexture(int sy) {
-        int base = sy * SAMPLE_SIZE;
-        for (int sx = 0; sx < SAMPLE_SIZE; sx++) {
-            image.setColor(sx, sy, argbToAbgr(BACK[base + sx]));
-        }
-    }
-
-    private static int argbToAbgr(int argb) {
-        int a = (argb >>> 24) & 0xFF;
-        int r = (argb >>> 16) & 0xFF;
-        int g = (argb >>> 8) & 0xFF;
-        int b = (argb) & 0xFF;
-        return (a << 24) | (b << 16) | (g << 8) | r;
-    }
-
-    private static void applySlopeShadingForRow(int sy) {
-        int rowBase = sy * SAMPLE_SIZE;
-        for (int sx = 0; sx < SAMPLE_SIZE; sx++) {
-            int idx = rowBase + sx;
-            int h = BACK_H[idx];
-            if (h == Integer.MIN_VALUE) continue;
-
-            int hW = (sx > 0) ? BACK_H[idx - 1] : h;
-            int hN = (sy > 0) ? BACK_H[idx - SAMPLE_SIZE] : h;
-
-            int dh = (hW - h) + (hN - h);
-            dh = Math.max(-6, Math.min(6, dh));
-
-            float shade = -dh * 0.03f;
-            int rgb = BACK[idx] & 0x00FFFFFF;
-            rgb = add(rgb, shade);
-            BACK[idx] = 0xFF000000 | rgb;
-        }
-    }
-
-    private static int add(int rgb, float amount) {
-        int delta = (int)(amount * 255f);
-        int r = clamp((rgb >> 16) & 0xFF + delta);
-        int g = clamp((rgb >> 8) & 0xFF + delta);
-        int b = clamp((rgb & 0xFF) + delta);
-        return (r << 16) | (g << 8) | b;
-    }
-
-    private static int clamp(int v) {
-        return v < 0 ? 0 : Math.min(255, v);
-    }
-
-    private static String computeSessionKey(ClientWorld world) {
-        MinecraftClient mc = MinecraftClient.getInstance();
-        String server = mc.getCurrentServerEntry() != null ?
-                mc.getCurrentServerEntry().address : "sp";
-        return server + "|" + world.getRegistryKey().getValue();
-    }
-}
\ No newline at end of file
+}
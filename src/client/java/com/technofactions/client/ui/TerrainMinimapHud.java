@@ -2,39 +2,57 @@ package com.technofactions.client.ui;
 
 import com.technofactions.client.state.ClaimCache;
 import net.minecraft.client.MinecraftClient;
-import net.minecraft.client.texture.NativeImage;
-import net.minecraft.client.texture.NativeImageBackedTexture;
 import net.minecraft.client.world.ClientWorld;
 import net.minecraft.util.Identifier;
 
+import java.util.Arrays;
+
+/**
+ * HUD minimap texture, kept as a wrap-around (toroidal) buffer: sample (gx, gz) of the world grid
+ * (gx = blockX / blocksPerPixel) always lives at texel (gx mod 256, gz mod 256). Moving only renders the
+ * rows and columns that scrolled into view; the HUD draws the texture from the view origin's texel,
+ * wrapping at the edges ({@link #originU()}, {@link #originV()}).
+ *
+ * A full rebuild (first frame, zoom change, teleport) fills rows progressively; a slow sweep re-renders
+ * a few rows per frame so newly captured terrain and claim changes show up without one.
+ */
 public final class TerrainMinimapHud {
 
     // Match HUD_DRAW_SIZE=128 for 1:1 crisp rendering and less work.
     private static final int SAMPLE_SIZE = 256;
+    private static final int SHIFT = 8;
+    private static final int MASK = SAMPLE_SIZE - 1;
 
-    private static final int[] FRONT = new int[SAMPLE_SIZE * SAMPLE_SIZE];
-    private static final int[] BACK  = new int[SAMPLE_SIZE * SAMPLE_SIZE];
+    // View origin snaps to this many samples, so the wrap seam falls on a whole HUD pixel (256 samples on 128 px)
+    private static final int ORIGIN_ALIGN = 2;
 
-    private static boolean rebuilding = false;
-    private static int buildRow = 0;
+    // sample (gx, gz) at ((gz & MASK) << SHIFT) | (gx & MASK), same layout as the texture
+    private static final int[] RING = new int[SAMPLE_SIZE * SAMPLE_SIZE];
+    private static final int[] ROW = new int[SAMPLE_SIZE];
+
+    // grid coordinates of the view's top-left sample; MIN_VALUE until the first frame
+    private static int originX = Integer.MIN_VALUE;
+    private static int originZ = Integer.MIN_VALUE;
 
-    private static int targetCenterX = Integer.MIN_VALUE;
-    private static int targetCenterZ = Integer.MIN_VALUE;
+    // view rows [0, validRows) are rendered for the current origin
+    private static int validRows = 0;
+    private static boolean rebuilding = false;
+    private static int refreshRow = 0;
 
     private static int blocksPerPixel = 1;
-    private static int requestedBpp = 1;
 
     private static final int UNKNOWN_ARGB = TerrainSurfaceCache.unknownArgb();
 
-    // Budget: rows per tick (HUD only)
+    // Budget: rows per tick while rebuilding, and of the background refresh sweep
     private static final int ROWS_PER_TICK = 16;
-    private static final int UPLOAD_EVERY_ROWS = 8;
+    private static final int REFRESH_ROWS_PER_TICK = 2;
 
     private static final Identifier TEX_ID = Identifier.of("technofactions", "minimap_hud");
-    private static NativeImageBackedTexture texture;
-    private static NativeImage image;
+    private static TerrainMapTexture texture;
 
-    private static final TerrainSurfaceCache.Sample cacheTmp = new TerrainSurfaceCache.Sample();
+    // last frame per server/dimension, shown again when switching back
+    private static final TerrainFrameStash stash = new TerrainFrameStash(SAMPLE_SIZE * SAMPLE_SIZE);
+    private static String lastSessionKey = null;
 
     private TerrainMinimapHud() {}
 
@@ -43,6 +61,12 @@ public final class TerrainMinimapHud {
     public static Identifier textureId() { ensureTexture(); return TEX_ID; }
     public static boolean isRebuilding() { return rebuilding; }
 
+    /**
+     * Texel column / row of the view's top-left sample; the view wraps around the texture edges from there.
+     */
+    public static int originU() { return originX == Integer.MIN_VALUE ? 0 : originX & MASK; }
+    public static int originV() { return originZ == Integer.MIN_VALUE ? 0 : originZ & MASK; }
+
     /**
      * Compatibility method MinimapHud expects.
      * Keeps HUD centered on player.
@@ -54,7 +78,7 @@ public final class TerrainMinimapHud {
     }
 
     /**
-     * Incrementally rebuild HUD minimap centered at a specific position.
+     * Scroll the HUD minimap to a center position, rendering what scrolled into view.
      */
     public static void tickAt(int desiredBpp, int centerX, int centerZ) {
         MinecraftClient mc = MinecraftClient.getInstance();
@@ -63,145 +87,174 @@ public final class TerrainMinimapHud {
 
         ensureTexture();
         TerrainSurfaceCache.ensureWorld(world);
+        switchSession(TerrainSurfaceCache.activeKey());
 
         // Clamp to sane HUD zoom
         if (desiredBpp < 1) desiredBpp = 1;
         if (desiredBpp > 4) desiredBpp = 4;
-        requestedBpp = desiredBpp;
 
-        // If zoom changes, force full rebuild
-        if (!rebuilding && blocksPerPixel != requestedBpp) {
-            blocksPerPixel = requestedBpp;
-            startRebuild(centerX, centerZ, false);
+        // a zoom change invalidates every sample
+        if (blocksPerPixel != desiredBpp) {
+            blocksPerPixel = desiredBpp;
+            originX = Integer.MIN_VALUE;
         }
 
-        // Movement threshold (avoid rebuilding for tiny jitter)
-        int threshold = Math.max(1, blocksPerPixel);
-
-        if (!rebuilding) {
-            if (targetCenterX == Integer.MIN_VALUE) {
-                startRebuild(centerX, centerZ, false);
-            } else {
-                int dx = Math.abs(centerX - targetCenterX);
-                int dz = Math.abs(centerZ - targetCenterZ);
-                if (dx >= threshold || dz >= threshold) {
-                    // seed from previous frame so it looks responsive
-                    startRebuild(centerX, centerZ, true);
-                }
-            }
+        int half = SAMPLE_SIZE / 2;
+        int ox = Math.floorDiv(Math.floorDiv(centerX, blocksPerPixel) - half, ORIGIN_ALIGN) * ORIGIN_ALIGN;
+        int oz = Math.floorDiv(Math.floorDiv(centerZ, blocksPerPixel) - half, ORIGIN_ALIGN) * ORIGIN_ALIGN;
+
+        if (originX == Integer.MIN_VALUE || Math.abs(ox - originX) >= SAMPLE_SIZE || Math.abs(oz - originZ) >= SAMPLE_SIZE) {
+            restart(ox, oz);
+        } else {
+            scroll(ox, oz);
         }
 
-        if (rebuilding) stepBuild();
+        if (validRows < SAMPLE_SIZE) stepBuild();
+        else refreshStep();
+
+        texture.flush();
     }
 
-    private static void startRebuild(int cx, int cz, boolean seedFromFront) {
-        targetCenterX = cx;
-        targetCenterZ = cz;
-        rebuilding = true;
-        buildRow = 0;
+    /**
+     * Stash the frame of the session we leave and bring back the one of the session we enter, if any.
+     */
+    private static void switchSession(String key) {
+        if (key == null || key.equals(lastSessionKey)) return;
 
-        if (seedFromFront) {
-            System.arraycopy(FRONT, 0, BACK, 0, FRONT.length);
+        int half = SAMPLE_SIZE / 2;
+        if (lastSessionKey != null && originX != Integer.MIN_VALUE) {
+            stash.save(lastSessionKey, RING, null, (originX + half) * blocksPerPixel, (originZ + half) * blocksPerPixel, blocksPerPixel);
+        }
+        lastSessionKey = key;
+
+        TerrainFrameStash.Frame f = stash.get(key);
+        if (f != null) {
+            // ring layout is position based, so the stashed frame lines up again as it was
+            System.arraycopy(f.argb, 0, RING, 0, RING.length);
+            blocksPerPixel = f.blocksPerPixel;
+            originX = Math.floorDiv(f.centerX, blocksPerPixel) - half;
+            originZ = Math.floorDiv(f.centerZ, blocksPerPixel) - half;
         } else {
-            for (int i = 0; i < BACK.length; i++) BACK[i] = UNKNOWN_ARGB;
+            Arrays.fill(RING, UNKNOWN_ARGB);
+            originX = Integer.MIN_VALUE;
+            originZ = Integer.MIN_VALUE;
         }
+        // re-render over what is shown, the cache may have moved on since
+        validRows = 0;
+        rebuilding = f != null;
 
-        // write the seeded frame immediately so it doesn't "blank"
-        writeWholeArrayToTexture(BACK);
-        texture.upload();
+        texture.writeAll(RING);
     }
 
-    private static void stepBuild() {
-        int half = SAMPLE_SIZE / 2;
-
-        int rows = 0;
-        int rowsSinceUpload = 0;
-
-        while (rows < ROWS_PER_TICK && buildRow < SAMPLE_SIZE) {
-            int sy = buildRow;
-            int worldZ = targetCenterZ + (sy - half) * blocksPerPixel;
-
-            int base = sy * SAMPLE_SIZE;
-
-            for (int sx = 0; sx < SAMPLE_SIZE; sx++) {
-                int worldX = targetCenterX + (sx - half) * blocksPerPixel;
-
-                int argb = UNKNOWN_ARGB;
-
-                if (TerrainSurfaceCache.read(worldX, worldZ, cacheTmp)) {
-                    argb = cacheTmp.argb;
-                }
+    /**
+     * Drop everything and rebuild the view at a new origin.
+     */
+    private static void restart(int ox, int oz) {
+        originX = ox;
+        originZ = oz;
+        validRows = 0;
+        rebuilding = true;
 
-                // Overlay claim tint (per CHUNK, but apply to pixels in that chunk)
-                int chunkX = Math.floorDiv(worldX, 16);
-                int chunkZ = Math.floorDiv(worldZ, 16);
-                ClaimCache.Cell cell = ClaimCache.get(chunkX, chunkZ);
-
-                if (cell != null) {
-                    if (cell.type() == 1) {
-                        // green tint
-                        argb = tint(argb, 0xFF33AA33, 0.35f);
-                    } else if (cell.type() == 2) {
-                        // red tint
-                        argb = tint(argb, 0xFFAA3333, 0.35f);
-                    }
-                }
+        Arrays.fill(RING, UNKNOWN_ARGB);
+        texture.writeAll(RING);
+    }
 
-                BACK[base + sx] = argb;
-                image.setColor(sx, sy, argbToAbgr(argb));
+    /**
+     * Move the origin by less than a view: render the rows and columns that came into view.
+     */
+    private static void scroll(int ox, int oz) {
+        int dx = ox - originX;
+        int dz = oz - originZ;
+        if (dx == 0 && dz == 0) return;
+
+        originX = ox;
+        originZ = oz;
+
+        // rows, in the new origin's view coordinates; rendered rows stay contiguous from the top
+        if (dz > 0) {
+            boolean complete = validRows == SAMPLE_SIZE;
+            validRows = Math.max(0, validRows - dz);
+            if (complete) {
+                for (int row = SAMPLE_SIZE - dz; row < SAMPLE_SIZE; row++) renderSpan(row, 0, SAMPLE_SIZE);
+                validRows = SAMPLE_SIZE;
             }
+        } else if (dz < 0) {
+            for (int row = 0; row < -dz; row++) renderSpan(row, 0, SAMPLE_SIZE);
+            validRows = Math.min(SAMPLE_SIZE, validRows - dz);
+        }
 
-            buildRow++;
-            rows++;
-            rowsSinceUpload++;
-
-            if (rowsSinceUpload >= UPLOAD_EVERY_ROWS) {
-                texture.upload();
-                rowsSinceUpload = 0;
-            }
+        // columns, for the rows already rendered (the rest are rendered whole later)
+        if (dx != 0) {
+            int col = dx > 0 ? SAMPLE_SIZE - dx : 0;
+            int count = Math.abs(dx);
+            for (int row = 0; row < validRows; row++) renderSpan(row, col, count);
         }
+    }
 
-        if (rowsSinceUpload > 0) texture.upload();
+    private static void stepBuild() {
+        int rows = 0;
+        while (rows < ROWS_PER_TICK && validRows < SAMPLE_SIZE) {
+            renderSpan(validRows, 0, SAMPLE_SIZE);
+            validRows++;
+            rows++;
+        }
+        if (validRows >= SAMPLE_SIZE) rebuilding = false;
+    }
 
-        if (buildRow >= SAMPLE_SIZE) {
-            System.arraycopy(BACK, 0, FRONT, 0, BACK.length);
-            rebuilding = false;
+    private static void refreshStep() {
+        for (int i = 0; i < REFRESH_ROWS_PER_TICK; i++) {
+            renderSpan(refreshRow, 0, SAMPLE_SIZE);
+            refreshRow = (refreshRow + 1) & MASK;
         }
     }
 
-    private static void writeWholeArrayToTexture(int[] srcArgb) {
-        int i = 0;
-        for (int y = 0; y < SAMPLE_SIZE; y++) {
-            for (int x = 0; x < SAMPLE_SIZE; x++) {
-                image.setColor(x, y, argbToAbgr(srcArgb[i++]));
+    /**
+     * Render count samples of one view row, starting at view column col, into the ring and the texture.
+     */
+    private static void renderSpan(int row, int col, int count) {
+        int gz = originZ + row;
+        int gx0 = originX + col;
+        int worldZ = gz * blocksPerPixel;
+        int startX = gx0 * blocksPerPixel;
+        int level = TerrainSurfaceCache.levelFor(blocksPerPixel);
+
+        TerrainSurfaceCache.readRow(startX, worldZ, count, blocksPerPixel, level, UNKNOWN_ARGB, ROW, null, 0);
+
+        int ty = gz & MASK;
+        int base = ty << SHIFT;
+        int chunkZ = Math.floorDiv(worldZ, 16);
+        for (int i = 0; i < count; i++) {
+            int worldX = startX + i * blocksPerPixel;
+            int argb = ROW[i];
+
+            // Overlay claim tint (per CHUNK, but apply to pixels in that chunk)
+            ClaimCache.Cell cell = ClaimCache.get(Math.floorDiv(worldX, 16), chunkZ);
+
+            if (cell != null) {
+                if (cell.type() == 1) {
+                    // green tint
+                    argb = tint(argb, 0xFF33AA33, 0.35f);
+                } else if (cell.type() == 2) {
+                    // red tint
+                    argb = tint(argb, 0xFFAA3333, 0.35f);
+                }
             }
+
+            RING[base | ((gx0 + i) & MASK)] = argb;
         }
+
+        // the span may wrap past the texture's right edge
+        int tx = gx0 & MASK;
+        int first = Math.min(count, SAMPLE_SIZE - tx);
+        texture.writeRow(ty, tx, RING, base | tx, first);
+        texture.writeRow(ty, 0, RING, base, count - first);
     }
 
     private static void ensureTexture() {
         if (texture != null) return;
 
-        image = new NativeImage(SAMPLE_SIZE, SAMPLE_SIZE, false);
-        texture = new NativeImageBackedTexture(() -> TEX_ID.toString(), image);
-        MinecraftClient.getInstance().getTextureManager().registerTexture(TEX_ID, texture);
-
         // crisp pixels
-        try { texture.setFilter(false, false); } catch (Throwable ignored) {}
-
-        for (int y = 0; y < SAMPLE_SIZE; y++) {
-            for (int x = 0; x < SAMPLE_SIZE; x++) {
-                image.setColor(x, y, argbToAbgr(UNKNOWN_ARGB));
-            }
-        }
-        texture.upload();
-    }
-
-    private static int argbToAbgr(int argb) {
-        int a = (argb >>> 24) & 0xFF;
-        int r = (argb >>> 16) & 0xFF;
-        int g = (argb >>> 8) & 0xFF;
-        int b = (argb) & 0xFF;
-        return (a << 24) | (b << 16) | (g << 8) | (r);
+        texture = new TerrainMapTexture(TEX_ID, SAMPLE_SIZE, false, UNKNOWN_ARGB);
     }
 
     /**
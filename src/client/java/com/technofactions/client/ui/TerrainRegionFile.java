@@ -0,0 +1,891 @@
+package com.technofactions.client.ui;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One v3 region file (r.<rx>.<rz>.tfc, 32x32 chunks), big endian.
+ *
+ * Sector 0: int magic "TFC2", int version, int generation (of the current header slot), int reserved.
+ * Then two header slots of HEADER_SECTORS * 256 bytes each; generation g lives in slot g & 1:
+ *   int magic, int version, int generation (bumped on every header write), int CRC32 of the rest
+ *   1024-bit built bitmap
+ *   1024 * (int first sector, int payload length, int write stamp in epoch seconds)
+ * Then variable-size {@link TerrainChunkCodec} payloads, each in its own run of 256-byte sectors.
+ *
+ * A header write goes to the slot the current generation does not use, and only then is sector 0
+ * pointed at it. A write torn by a crash therefore leaves the previous slot intact, and opening the
+ * file falls back to it when the newer slot fails its checksum. Rewritten chunks always go to freshly
+ * allocated sectors; the old run is only released after the header pointing at the new one is written,
+ * so the previous slot never points at reused sectors either.
+ *
+ * The in-memory table is guarded by this object's monitor, held only for table updates: batch writers
+ * ({@link #writeBatch}) reserve sectors and publish the table under it, and write payloads and the header
+ * outside it, so readers never wait on disk latency of a write.
+ *
+ * v1 files (fixed 1537-byte entries, optional trailing index block) and v2 files (one header in place
+ * of sector 0 and the slots, no checksum) are converted by {@link #open} the first time they are opened;
+ * {@link #openReadOnly} reads v2 as it is.
+ *
+ * Several game instances may share a file. The cross-process lock covers one byte far past the end of
+ * the file, never the data, so reads need no lock (Windows locks are mandatory). Writers hold it
+ * exclusively and reload the header first if another process bumped the generation
+ * ({@link #reloadIfChanged()}); header reloads hold it shared. A chunk read checks the generation on disk
+ * after reading the payload: sectors are only reused after a later header write, so an unchanged
+ * generation means the payload still belonged to the chunk ({@link #read}). A second byte is held shared by
+ * every writable handle while it is open, so the disk quota can tell a file is in use elsewhere ({@link #inUse}).
+ */
+final class TerrainRegionFile implements AutoCloseable {
+    static final int MAGIC = 0x54464332; // "TFC2"
+    static final int VERSION = 3;
+    static final int V2 = 2;
+
+    static final int CHUNKS = 32 * 32;
+    static final int SECTOR_BYTES = 256;
+
+    private static final int OFF_BITMAP = 16;
+    private static final int OFF_TABLE = OFF_BITMAP + CHUNKS / 8;
+    private static final int TABLE_ENTRY_BYTES = 12;
+    static final int HEADER_BYTES = OFF_TABLE + CHUNKS * TABLE_ENTRY_BYTES;
+    static final int HEADER_SECTORS = (HEADER_BYTES + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    private static final int SUPER_BYTES = 16;
+    // sector 0, then the two header slots
+    static final int FIRST_DATA_SECTOR = 1 + 2 * HEADER_SECTORS;
+
+    // v1: 1 byte built + 256 * int ARGB + 256 * short topY per chunk, then the optional index block
+    static final int V1_ENTRY_BYTES = 1 + (256 * 4) + (256 * 2);
+    static final long V1_ENTRIES_BYTES = (long) CHUNKS * V1_ENTRY_BYTES;
+    private static final int V1_INDEX_MAGIC = 0x54464349; // "TFCI"
+    private static final int V1_INDEX_STAMPS_OFFSET = 8 + CHUNKS / 8;
+    private static final int V1_INDEX_BYTES = V1_INDEX_STAMPS_OFFSET + CHUNKS * 4;
+
+    // the byte locked across processes, far past any real file length
+    private static final long LOCK_POSITION = Long.MAX_VALUE - 1L;
+    // held shared by every writable handle while open
+    private static final long HOLD_POSITION = Long.MAX_VALUE - 2L;
+
+    // results of read()
+    static final int READ_OK = 0;
+    static final int READ_MISSING = 1;
+    static final int READ_STALE = 2;      // the header changed on disk; reload and retry
+    static final int READ_CORRUPT = 3;
+
+    /**
+     * Receives decoded chunks while walking a file.
+     */
+    interface ChunkSink {
+        void accept(int local, int[] color, short[] topY, int stamp) throws IOException;
+    }
+
+    final File file;
+    private final FileChannel channel;
+    private final boolean readOnly;
+    // first payload sector: FIRST_DATA_SECTOR, or HEADER_SECTORS for a v2 file opened read-only
+    private int dataStart = FIRST_DATA_SECTOR;
+
+    final long[] built = new long[CHUNKS / 64];
+    private final int[] sector = new int[CHUNKS];
+    private final int[] length = new int[CHUNKS];
+    private final int[] stamp = new int[CHUNKS];
+
+    private int generation = 0;
+    // generation known to be on disk; one behind generation while our own header write is in flight
+    private int published = 0;
+    private int damaged = 0;
+
+    private final BitSet used = new BitSet();
+    private final List<int[]> pendingFree = new ArrayList<>();
+    private boolean headerDirty = false;
+    private FileLock hold;
+
+    // handle users outside the store lock, and whether the store dropped it meanwhile; guarded by the store
+    int users = 0;
+    boolean retired = false;
+
+    private TerrainRegionFile(File file, boolean fresh, boolean readOnly) throws IOException {
+        this.file = file;
+        this.readOnly = readOnly;
+        this.channel = readOnly
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            used.set(0, dataStart);
+            if (readOnly) {
+                // no lock either: the byte past EOF can only be locked shared, and offline readers need none
+                if (channel.size() > 0) loadHeader();
+                return;
+            }
+            hold = tryHold(true);
+            try (FileLock lock = tryLock(!fresh && channel.size() > 0)) {
+                if (lock == null) {
+                    // another instance is creating or writing it: nothing we read now can be trusted
+                    // until a reload under the lock, so every read reports it stale
+                    try {
+                        if (channel.size() >= SUPER_BYTES) loadHeader();
+                    } catch (IOException e) {
+                        // its first header is not written yet
+                    }
+                    generation = published = -1;
+                } else if (channel.size() == 0) {
+                    // another instance may have created it since the caller looked; only write the
+                    // header if it is still empty under the lock
+                    if (!lock.isShared()) {
+                        headerDirty = true;
+                        flushHeader();
+                    }
+                } else {
+                    loadHeader();
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a region file, converting it from v1 or v2 first if needed.
+     * Returns null if the file does not exist and create is false.
+     */
+    static TerrainRegionFile open(File f, boolean create, TerrainChunkCodec codec) throws IOException {
+        if (!f.exists()) {
+            if (!create) return null;
+            return new TerrainRegionFile(f, true, false);
+        }
+
+        convert(f, codec);
+        return new TerrainRegionFile(f, false, false);
+    }
+
+    /**
+     * Open a v3 or v2 file for reading only: nothing is written, not even the header of an empty file, and
+     * no lock is taken. Returns null if the file does not exist; v1 files are rejected, not converted.
+     * Writes and locks on the handle fail.
+     */
+    static TerrainRegionFile openReadOnly(File f) throws IOException {
+        if (!f.exists()) return null;
+
+        int version = detectVersion(f);
+        if (version != 0 && version != V2 && version != VERSION) throw new IOException("unsupported region version " + version + " in " + f.getName());
+
+        return new TerrainRegionFile(f, false, true);
+    }
+
+    /**
+     * Whether a file is in an older format {@link #convert} rewrites.
+     */
+    static boolean needsConversion(File f) throws IOException {
+        int version = detectVersion(f);
+        return version == 1 || version == V2;
+    }
+
+    /**
+     * Rewrite a v1 or v2 file as v3 in place (via a temp file + rename); v3 and empty files are left alone.
+     */
+    static void convert(File f, TerrainChunkCodec codec) throws IOException {
+        int version = detectVersion(f);
+        if (version == 1) migrateV1(f, codec);
+        else if (version == V2) migrateV2(f);
+        else if (version != 0 && version != VERSION) throw new IOException("unsupported region version " + version + " in " + f.getName());
+    }
+
+    /**
+     * Create (or truncate) a v3 file.
+     */
+    static TerrainRegionFile create(File f) throws IOException {
+        Files.deleteIfExists(f.toPath());
+        return new TerrainRegionFile(f, true, false);
+    }
+
+    /**
+     * 0 for an empty file, 1 for the fixed-entry format, otherwise the version in the header.
+     */
+    static int detectVersion(File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocate(8);
+            int n = readUpTo(ch, b, 0L);
+            if (n == 0) return 0;
+            if (n == 8 && b.getInt(0) == MAGIC) return b.getInt(4);
+            return 1;
+        }
+    }
+
+    synchronized boolean isBuilt(int local) {
+        return (built[local >>> 6] & (1L << local)) != 0;
+    }
+
+    synchronized int stamp(int local) {
+        return stamp[local];
+    }
+
+    synchronized int payloadLength(int local) {
+        return isBuilt(local) ? length[local] : 0;
+    }
+
+    synchronized int generation() {
+        return generation;
+    }
+
+    /**
+     * Generation sector 0 names, 0 before the first header write; differs from {@link #generation()}
+     * after a foreign write.
+     */
+    int diskGeneration() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        return readUpTo(channel, b, 8L) == 4 ? b.getInt(0) : 0;
+    }
+
+    /**
+     * Exclusive cross-process lock, held around every write batch. Retries until it gets it, so never
+     * call this holding a monitor the client thread needs.
+     */
+    FileLock lock() throws IOException {
+        long backoff = 1L;
+        while (true) {
+            FileLock l = tryLock(false);
+            if (l != null) return l;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for the lock on " + file.getName());
+            }
+            backoff = Math.min(50L, backoff * 2);
+        }
+    }
+
+    /**
+     * Cross-process lock, or null if another process (or another handle in this one) holds a conflicting one.
+     */
+    FileLock tryLock(boolean shared) throws IOException {
+        try {
+            return channel.tryLock(LOCK_POSITION, 1L, shared);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private FileLock tryHold(boolean shared) throws IOException {
+        try {
+            return channel.tryLock(HOLD_POSITION, 1L, shared);
+        } catch (OverlappingFileLockException e) {
+            // another handle in this process holds it already
+            return null;
+        }
+    }
+
+    /**
+     * Whether another process has this file open for writing. Gives up our own hold to find out and takes
+     * it back if so; meant for a handle about to be dropped along with its file.
+     */
+    synchronized boolean inUseElsewhere() throws IOException {
+        if (readOnly) return false;
+        if (hold != null) hold.release();
+
+        try (FileLock l = tryHold(false)) {
+            if (l != null) return false;
+        }
+        hold = tryHold(true);
+        return true;
+    }
+
+    /**
+     * Whether any writable handle has a file open. Only for files this process has no handle on: closing the
+     * probe channel drops every lock the process holds on the file.
+     */
+    static boolean inUse(File f) {
+        if (!f.exists()) return false;
+
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock l = ch.tryLock(HOLD_POSITION, 1L, false)) {
+            return l == null;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        } catch (IOException e) {
+            // gone meanwhile, or not writable for us: then it is not ours to delete either
+            return f.exists();
+        }
+    }
+
+    /**
+     * Reload the header under a shared lock if another process wrote it. Never waits: returns false if a
+     * writer holds the lock right now. Chunks that changed are OR-ed into changed.
+     */
+    boolean tryReload(long[] changed) throws IOException {
+        int disk = diskGeneration();
+        synchronized (this) {
+            if (disk == generation || disk == published) return true;
+        }
+
+        try (FileLock lock = tryLock(true)) {
+            if (lock == null) return false;
+
+            long[] c = reloadIfChanged();
+            if (c != null) {
+                for (int i = 0; i < changed.length; i++) changed[i] |= c[i];
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Re-read the header if another process wrote it since we last did. Returns the bitmap of chunks
+     * that changed (built, removed or rewritten), or null if nothing did. Call holding the lock
+     * ({@link #lock()} or a shared {@link #tryLock}); the read itself runs outside the monitor.
+     */
+    long[] reloadIfChanged() throws IOException {
+        int disk = diskGeneration();
+        synchronized (this) {
+            // published: a header recovered from a torn write is older than the generation disk names
+            if (headerDirty || disk == generation || disk == published) return null;
+        }
+
+        if (disk == 0) {
+            // opened while another instance was creating it, and it never got a header: still empty
+            synchronized (this) {
+                if (generation < 0) generation = published = 0;
+            }
+            return null;
+        }
+        ByteBuffer header = readHeader(disk);
+
+        synchronized (this) {
+            return applyHeader(header, disk);
+        }
+    }
+
+    // caller holds the monitor
+    private long[] applyHeader(ByteBuffer header, int disk) throws IOException {
+        long[] oldBuilt = built.clone();
+        int[] oldStamp = stamp.clone();
+
+        used.clear();
+        used.set(0, dataStart);
+        pendingFree.clear();
+        damaged = 0;
+        parseHeader(header, disk);
+
+        long[] changed = new long[CHUNKS / 64];
+        boolean any = false;
+        for (int i = 0; i < CHUNKS; i++) {
+            boolean was = (oldBuilt[i >>> 6] & (1L << i)) != 0;
+            if (was != isBuilt(i) || (was && oldStamp[i] != stamp[i])) {
+                changed[i >>> 6] |= 1L << i;
+                any = true;
+            }
+        }
+        return any ? changed : null;
+    }
+
+    /**
+     * Entries dropped while opening because they pointed outside the file (truncated writes).
+     */
+    synchronized int damaged() {
+        return damaged;
+    }
+
+    synchronized int builtCount() {
+        int n = 0;
+        for (long w : built) n += Long.bitCount(w);
+        return n;
+    }
+
+    long sizeBytes() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Copy of the built bitmap.
+     */
+    synchronized long[] builtSnapshot() {
+        return built.clone();
+    }
+
+    /**
+     * Bytes the header and the live payload sectors occupy; the rest of the file is free space.
+     */
+    synchronized long usedBytes() {
+        return (long) used.cardinality() * SECTOR_BYTES;
+    }
+
+    /**
+     * Read + decode one chunk: {@link #READ_OK}, {@link #READ_MISSING} if it is not built,
+     * {@link #READ_STALE} if another process changed the header since we loaded it (the payload may have
+     * been another chunk's; {@link #tryReload} and retry), {@link #READ_CORRUPT} if it does not decode.
+     */
+    int read(int local, TerrainChunkCodec codec, int[] color, short[] topY) throws IOException {
+        int start, len, gen, pub;
+        synchronized (this) {
+            if (!isBuilt(local)) return READ_MISSING;
+            start = sector[local];
+            len = length[local];
+            gen = generation;
+            pub = published;
+        }
+        if (gen < 0) return READ_STALE;
+
+        byte[] buf = codec.input(len);
+        int n = readUpTo(channel, ByteBuffer.wrap(buf, 0, len), (long) start * SECTOR_BYTES);
+
+        // checked after the read: our sectors could only have been reused after a header write since
+        int disk = diskGeneration();
+        if (disk != gen && disk != pub) return READ_STALE;
+        if (n != len) return READ_CORRUPT;
+
+        return codec.decode(buf, 0, len, color, topY) ? READ_OK : READ_CORRUPT;
+    }
+
+    /**
+     * Read the raw (still compressed) payload of one chunk, or null if it is not built or truncated.
+     */
+    byte[] readPayload(int local) throws IOException {
+        int start;
+        byte[] buf;
+        synchronized (this) {
+            if (!isBuilt(local)) return null;
+            start = sector[local];
+            buf = new byte[length[local]];
+        }
+
+        if (readUpTo(channel, ByteBuffer.wrap(buf), (long) start * SECTOR_BYTES) != buf.length) return null;
+        return buf;
+    }
+
+    /**
+     * Store an encoded payload. The header is only updated in memory; call {@link #flushHeader()} after a batch.
+     */
+    synchronized void write(int local, byte[] data, int len, int stampValue) throws IOException {
+        int start = reserve(len);
+        writeSectors(start, data, len);
+        commit(local, start, len, stampValue);
+    }
+
+    /**
+     * Store a batch of encoded payloads and write the header once. Sectors are reserved and the table is
+     * published under this file's monitor; payloads and the header are written outside it. Old runs are
+     * released after the header is on disk. One batch writer per file at a time (the caller's file lock).
+     */
+    void writeBatch(int[] locals, byte[][] data, int[] lens, int count, int stampValue) throws IOException {
+        int[] starts = new int[count];
+        synchronized (this) {
+            for (int i = 0; i < count; i++) starts[i] = reserve(lens[i]);
+        }
+
+        ByteBuffer h;
+        try {
+            for (int i = 0; i < count; i++) writeSectors(starts[i], data[i], lens[i]);
+        } catch (IOException e) {
+            synchronized (this) {
+                for (int i = 0; i < count; i++) used.clear(starts[i], starts[i] + sectorsFor(lens[i]));
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < count; i++) commit(locals[i], starts[i], lens[i], stampValue);
+            h = serializeHeader();
+        }
+
+        writeHeader(h);
+
+        synchronized (this) {
+            published = h.getInt(8);
+            releasePending();
+        }
+    }
+
+    /**
+     * Mark a chunk as not built (its sectors are released on the next header flush).
+     */
+    synchronized void remove(int local) {
+        if (!isBuilt(local)) return;
+
+        pendingFree.add(new int[] { sector[local], sectorsFor(length[local]) });
+        built[local >>> 6] &= ~(1L << local);
+        sector[local] = 0;
+        length[local] = 0;
+        stamp[local] = 0;
+        headerDirty = true;
+    }
+
+    synchronized void flushHeader() throws IOException {
+        if (!headerDirty) return;
+        if (readOnly) throw new IOException(file.getName() + " is open read-only");
+
+        ByteBuffer h = serializeHeader();
+        writeHeader(h);
+        published = h.getInt(8);
+        releasePending();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushHeader();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // v1 compatibility
+    // ---------------------------------------------------------------------
+
+    /**
+     * Walk every built entry of a v1 file. Entries cut off by the end of the file are skipped.
+     * Returns the number of chunks delivered.
+     */
+    static int readV1(File f, ChunkSink sink) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(ch.size(), V1_ENTRIES_BYTES + V1_INDEX_BYTES));
+            int size = readUpTo(ch, buf, 0L);
+
+            int[] stamps = new int[CHUNKS];
+            int ib = (int) V1_ENTRIES_BYTES;
+            if (size >= ib + V1_INDEX_BYTES && buf.getInt(ib) == V1_INDEX_MAGIC) {
+                buf.slice(ib + V1_INDEX_STAMPS_OFFSET, CHUNKS * 4).asIntBuffer().get(stamps);
+            }
+
+            int[] color = new int[256];
+            short[] topY = new short[256];
+            int n = 0;
+
+            for (int i = 0; i < CHUNKS; i++) {
+                int off = i * V1_ENTRY_BYTES;
+                if (off + V1_ENTRY_BYTES > size) break;
+                if (buf.get(off) != 1) continue;
+
+                buf.slice(off + 1, 256 * 4).asIntBuffer().get(color);
+                buf.slice(off + 1 + 256 * 4, 256 * 2).asShortBuffer().get(topY);
+                sink.accept(i, color, topY, stamps[i]);
+                n++;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Rewrite a v1 file as v3 in place (via a temp file + rename).
+     */
+    static void migrateV1(File f, TerrainChunkCodec codec) throws IOException {
+        long before = f.length();
+        File tmp = tempFile(f);
+
+        int migrated;
+        try (TerrainRegionFile out = create(tmp)) {
+            migrated = readV1(f, (local, color, topY, stampValue) -> {
+                int len = codec.encode(color, topY);
+                out.write(local, codec.output(), len, stampValue);
+            });
+        }
+
+        replace(tmp, f);
+        System.out.println("[TechnoFactions] TerrainRegionFile migrated " + f.getName() + " to v3: "
+                + migrated + " chunks, " + before + " -> " + f.length() + " bytes");
+    }
+
+    /**
+     * Rewrite a v2 file as v3 in place (via a temp file + rename), copying the payloads as they are.
+     */
+    static void migrateV2(File f) throws IOException {
+        File tmp = tempFile(f);
+
+        int migrated = 0;
+        try (TerrainRegionFile in = openReadOnly(f);
+             TerrainRegionFile out = create(tmp)) {
+            for (int i = 0; i < CHUNKS; i++) {
+                byte[] payload = in.readPayload(i);
+                if (payload == null) continue;
+                out.write(i, payload, payload.length, in.stamp(i));
+                migrated++;
+            }
+        }
+
+        replace(tmp, f);
+        System.out.println("[TechnoFactions] TerrainRegionFile migrated " + f.getName() + " to v3: " + migrated + " chunks");
+    }
+
+    /**
+     * Rewrite a v3 file in the fixed-entry v1 layout with its index block (for older client builds),
+     * via a temp file + rename. Entries that do not decode are left out. Returns the chunks written.
+     */
+    static int downgradeV1(File f, TerrainChunkCodec codec) throws IOException {
+        File tmp = tempFile(f);
+
+        ByteBuffer buf = ByteBuffer.allocate((int) V1_ENTRIES_BYTES + V1_INDEX_BYTES);
+        int[] color = new int[256];
+        short[] topY = new short[256];
+        long[] builtV1 = new long[CHUNKS / 64];
+        int n = 0;
+
+        try (TerrainRegionFile in = open(f, false, codec)) {
+            if (in == null) return 0;
+
+            for (int i = 0; i < CHUNKS; i++) {
+                if (in.read(i, codec, color, topY) != READ_OK) continue;
+
+                int off = i * V1_ENTRY_BYTES;
+                buf.put(off, (byte) 1);
+                buf.slice(off + 1, 256 * 4).asIntBuffer().put(color);
+                buf.slice(off + 1 + 256 * 4, 256 * 2).asShortBuffer().put(topY);
+                buf.putInt((int) V1_ENTRIES_BYTES + V1_INDEX_STAMPS_OFFSET + i * 4, in.stamp(i));
+                builtV1[i >>> 6] |= 1L << i;
+                n++;
+            }
+        }
+
+        int ib = (int) V1_ENTRIES_BYTES;
+        buf.putInt(ib, V1_INDEX_MAGIC);
+        buf.putInt(ib + 4, 1);
+        for (int i = 0; i < builtV1.length; i++) buf.putLong(ib + 8 + i * 8, builtV1[i]);
+
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long pos = 0L;
+            while (buf.hasRemaining()) pos += ch.write(buf, pos);
+        }
+        replace(tmp, f);
+        return n;
+    }
+
+    static String fileName(int rx, int rz) {
+        return "r." + rx + "." + rz + ".tfc";
+    }
+
+    static long regionKey(int rx, int rz) {
+        return ((long) rx << 32) ^ (rz & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Temp file next to f for write + rename, unique per process so instances sharing a directory never collide.
+     */
+    static File tempFile(File f) {
+        return new File(f.getParentFile(), f.getName() + "." + ProcessHandle.current().pid() + ".tmp");
+    }
+
+    static void replace(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // internals
+    // ---------------------------------------------------------------------
+
+    private void loadHeader() throws IOException {
+        ByteBuffer sb = ByteBuffer.allocate(SUPER_BYTES);
+        if (readUpTo(channel, sb, 0L) < SUPER_BYTES) throw new EOFException("truncated region header in " + file.getName());
+        if (sb.getInt(0) != MAGIC) throw new IOException("bad region magic in " + file.getName());
+        int version = sb.getInt(4);
+        if (version != VERSION && version != V2) throw new IOException("unsupported region version " + version + " in " + file.getName());
+
+        if (version == V2) {
+            if (!readOnly) throw new IOException(file.getName() + " is v2, convert it first");
+            dataStart = HEADER_SECTORS;
+            used.clear();
+            used.set(0, dataStart);
+        }
+        int disk = sb.getInt(8);
+        parseHeader(readHeader(disk), disk);
+    }
+
+    /**
+     * The header generation disk names: its slot if intact, else the previous generation's slot (the write
+     * of disk was torn). For v2, the one header.
+     */
+    private ByteBuffer readHeader(int disk) throws IOException {
+        if (dataStart == HEADER_SECTORS) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_BYTES);
+            if (readUpTo(channel, header, 0L) < HEADER_BYTES) throw new EOFException("truncated region header in " + file.getName());
+            return header;
+        }
+
+        ByteBuffer header = readSlot(disk);
+        if (header != null) return header;
+
+        header = readSlot(disk - 1);
+        if (header == null) throw new IOException("no intact region header in " + file.getName());
+        System.out.println("[TechnoFactions] TerrainRegionFile " + file.getName() + ": torn header write, using generation " + (disk - 1));
+        return header;
+    }
+
+    /**
+     * The slot of a generation, or null if it does not hold that generation or fails its checksum.
+     */
+    private ByteBuffer readSlot(int gen) throws IOException {
+        if (gen <= 0) return null;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_BYTES);
+        if (readUpTo(channel, header, slotPosition(gen)) < HEADER_BYTES) return null;
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != gen) return null;
+        return header.getInt(12) == headerChecksum(header) ? header : null;
+    }
+
+    /**
+     * File position of the header slot generation gen is written to.
+     */
+    static long slotPosition(int gen) {
+        return (long) (1 + (gen & 1) * HEADER_SECTORS) * SECTOR_BYTES;
+    }
+
+    /**
+     * CRC32 of a header slot, skipping its checksum field.
+     */
+    static int headerChecksum(ByteBuffer header) {
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, 12);
+        crc.update(header.array(), 16, HEADER_BYTES - 16);
+        return (int) crc.getValue();
+    }
+
+    // disk: the generation sector 0 names, which is what reads compare against
+    private void parseHeader(ByteBuffer header, int disk) throws IOException {
+        generation = header.getInt(8);
+        published = disk;
+        // recovered from a torn write of disk: the next header goes to disk + 2, back into the torn slot, so
+        // the intact one survives and other instances still see a generation they have not read
+        if (generation != disk) generation = disk + 1;
+
+        for (int i = 0; i < built.length; i++) built[i] = header.getLong(OFF_BITMAP + i * 8);
+
+        long fileSize = channel.size();
+        for (int i = 0; i < CHUNKS; i++) {
+            int p = OFF_TABLE + i * TABLE_ENTRY_BYTES;
+            sector[i] = header.getInt(p);
+            length[i] = header.getInt(p + 4);
+            stamp[i] = header.getInt(p + 8);
+
+            if (!isBuilt(i)) continue;
+
+            long end = (long) sector[i] * SECTOR_BYTES + length[i];
+            if (sector[i] < dataStart || length[i] <= 0 || end > fileSize) {
+                built[i >>> 6] &= ~(1L << i);
+                damaged++;
+                continue;
+            }
+            used.set(sector[i], sector[i] + sectorsFor(length[i]));
+        }
+    }
+
+    /**
+     * Allocate and mark the sectors for a payload of len bytes. Caller holds the monitor.
+     */
+    private int reserve(int len) {
+        int need = sectorsFor(len);
+        int start = allocate(need);
+        used.set(start, start + need);
+        return start;
+    }
+
+    private void writeSectors(int start, byte[] data, int len) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(data, 0, len);
+        long pos = (long) start * SECTOR_BYTES;
+        while (src.hasRemaining()) pos += channel.write(src, pos);
+
+        // pad the last sector so the file length always covers whole sectors
+        int pad = sectorsFor(len) * SECTOR_BYTES - len;
+        if (pad > 0 && pos + pad > channel.size()) channel.write(ByteBuffer.allocate(pad), pos);
+    }
+
+    /**
+     * Point a chunk at freshly written sectors; its old run is released after the next header write.
+     * Caller holds the monitor.
+     */
+    private void commit(int local, int start, int len, int stampValue) {
+        if (isBuilt(local)) pendingFree.add(new int[] { sector[local], sectorsFor(length[local]) });
+
+        sector[local] = start;
+        length[local] = len;
+        stamp[local] = stampValue;
+        built[local >>> 6] |= 1L << local;
+        headerDirty = true;
+    }
+
+    /**
+     * Bump the generation and lay out the header slot. Caller holds the monitor.
+     */
+    private ByteBuffer serializeHeader() {
+        generation++;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_BYTES);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(generation);
+        header.putInt(0);
+        for (long w : built) header.putLong(w);
+        for (int i = 0; i < CHUNKS; i++) {
+            header.putInt(sector[i]);
+            header.putInt(length[i]);
+            header.putInt(stamp[i]);
+        }
+        header.putInt(12, headerChecksum(header));
+        header.clear();
+        headerDirty = false;
+        return header;
+    }
+
+    /**
+     * Write a slot, then point sector 0 at it. Until the second write lands, the previous slot stays current.
+     */
+    private void writeHeader(ByteBuffer header) throws IOException {
+        int gen = header.getInt(8);
+        long pos = slotPosition(gen);
+        while (header.hasRemaining()) pos += channel.write(header, pos);
+
+        ByteBuffer sb = ByteBuffer.allocate(SECTOR_BYTES);
+        sb.putInt(MAGIC);
+        sb.putInt(VERSION);
+        sb.putInt(gen);
+        sb.clear();
+        pos = 0L;
+        while (sb.hasRemaining()) pos += channel.write(sb, pos);
+    }
+
+    // caller holds the monitor
+    private void releasePending() {
+        for (int[] run : pendingFree) used.clear(run[0], run[0] + run[1]);
+        pendingFree.clear();
+    }
+
+    private int allocate(int need) {
+        int i = dataStart;
+        while (true) {
+            i = used.nextClearBit(i);
+            int next = used.nextSetBit(i);
+            if (next < 0 || next - i >= need) return i;
+            i = next;
+        }
+    }
+
+    private static int sectorsFor(int len) {
+        return (len + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    }
+
+    /**
+     * Positional read until dst is full or EOF; returns bytes read.
+     */
+    private static int readUpTo(FileChannel ch, ByteBuffer dst, long pos) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = ch.read(dst, pos + total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,155 @@
+package com.technofactions.client.ui;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background region loader for {@link TerrainSurfaceCache}.
+ *
+ * Decodes every built chunk of a requested region (write queue first, then disk) plus its LOD sidecar
+ * into a detached {@link TerrainSurfaceTile}, which the client thread merges on tick. Latest requests
+ * are served first, since they are the ones closest to where the player is heading.
+ *
+ * LOD-only requests load just the region's sidecar, for tiles that zoomed-out views touch first;
+ * the client thread never reads sidecars itself.
+ *
+ * Between requests it also polls the store for chunks other game instances wrote to the shared
+ * directory ({@link TerrainRegionStore#pollChanges()}), so the client never waits on that I/O.
+ *
+ * One prefetcher per active cache directory, closed before its store.
+ */
+final class TerrainRegionPrefetcher {
+    private static final long CHANGE_POLL_NANOS = 2_000_000_000L;
+
+    private final TerrainRegionStore store;
+    private final TerrainWriteQueue writer;
+
+    private record Request(long key, boolean lodOnly) {}
+
+    private final LinkedBlockingDeque<Request> requests = new LinkedBlockingDeque<>();
+    private final ConcurrentLinkedQueue<TerrainSurfaceTile> done = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Long2ObjectOpenHashMap<long[]>> changes = new ConcurrentLinkedQueue<>();
+    private long nextChangePoll = System.nanoTime() + CHANGE_POLL_NANOS;
+
+    private final Thread worker;
+    private volatile boolean closed = false;
+
+    // worker-owned chunk scratch
+    private final int[] color = new int[256];
+    private final short[] topY = new short[256];
+
+    TerrainRegionPrefetcher(TerrainRegionStore store, TerrainWriteQueue writer) {
+        this.store = store;
+        this.writer = writer;
+        this.worker = new Thread(this::run, "TechnoFactions-SurfacePrefetch");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    void request(int rx, int rz) {
+        if (!closed) requests.addFirst(new Request(TerrainRegionStore.packRegionKey(rx, rz), false));
+    }
+
+    /**
+     * Load only the LOD sidecar of a region; the result is a tile with levels and no resolved chunks.
+     */
+    void requestLod(int rx, int rz) {
+        if (!closed) requests.addFirst(new Request(TerrainRegionStore.packRegionKey(rx, rz), true));
+    }
+
+    /**
+     * Next loaded region, or null if none is ready.
+     */
+    TerrainSurfaceTile poll() {
+        return done.poll();
+    }
+
+    /**
+     * Next batch of chunks written by other instances (region key -> chunk bitmap), or null.
+     */
+    Long2ObjectOpenHashMap<long[]> pollChanges() {
+        return changes.poll();
+    }
+
+    /**
+     * Stop after the region in progress. The worker is never interrupted: an interrupt during a
+     * positional read would close the store's shared file channel.
+     */
+    void close() {
+        closed = true;
+        requests.clear();
+
+        try {
+            worker.join(2_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        done.clear();
+        changes.clear();
+    }
+
+    private void run() {
+        while (!closed) {
+            Request req;
+            try {
+                req = requests.pollFirst(250, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (System.nanoTime() >= nextChangePoll) {
+                nextChangePoll = System.nanoTime() + CHANGE_POLL_NANOS;
+                try {
+                    Long2ObjectOpenHashMap<long[]> changed = store.pollChanges();
+                    if (changed != null) changes.add(changed);
+                } catch (Throwable t) {
+                    System.out.println("[TechnoFactions] TerrainRegionPrefetcher change poll failed: " + t);
+                }
+            }
+            if (req == null) continue;
+
+            try {
+                int rx = (int) (req.key() >> 32);
+                int rz = (int) req.key();
+                TerrainSurfaceTile t = req.lodOnly() ? loadLod(rx, rz) : load(rx, rz);
+                if (t != null) done.add(t);
+            } catch (Throwable t) {
+                System.out.println("[TechnoFactions] TerrainRegionPrefetcher load failed: " + t);
+            }
+        }
+    }
+
+    private TerrainSurfaceTile loadLod(int rx, int rz) {
+        TerrainSurfaceTile t = new TerrainSurfaceTile(rx, rz);
+        TerrainSurfaceLod lod = writer.peekLod(rx, rz);
+        t.lod = lod != null ? lod : store.readLod(rx, rz);
+        return t;
+    }
+
+    private TerrainSurfaceTile load(int rx, int rz) {
+        store.migrateIfNeeded(rx, rz);
+        TerrainSurfaceTile t = new TerrainSurfaceTile(rx, rz);
+
+        TerrainSurfaceLod lod = writer.peekLod(rx, rz);
+        t.lod = lod != null ? lod : store.readLod(rx, rz);
+
+        int baseCx = rx * TerrainRegionStore.REGION_SIZE;
+        int baseCz = rz * TerrainRegionStore.REGION_SIZE;
+
+        for (int local = 0; local < TerrainRegionStore.CHUNKS_PER_REGION; local++) {
+            if (closed) return null;
+
+            int cx = baseCx + (local & (TerrainRegionStore.REGION_SIZE - 1));
+            int cz = baseCz + (local >> TerrainRegionStore.REGION_SHIFT);
+
+            if (writer.peek(cx, cz, color, topY) || (store.isBuilt(cx, cz) && store.readChunk(cx, cz, color, topY))) {
+                t.put(local, color, topY);
+            } else {
+                t.markMissing(local);
+            }
+        }
+        return t;
+    }
+}
@@ -0,0 +1,608 @@
+package com.technofactions.client.ui;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Region file store for {@link TerrainSurfaceCache}.
+ *
+ * Keeps a bounded set of r.<rx>.<rz>.tfc files open ({@link TerrainRegionFile}), so a chunk read
+ * or write is one positional read/write of its compressed payload instead of a file open per chunk.
+ *
+ * The built bitmap of every region touched is kept in memory, so "never built" is answered without
+ * touching the file. Regions without a file share an empty bitmap. Which regions have a region file or
+ * LOD sidecar at all comes from one directory listing at open (kept up to date by our own writes and
+ * {@link #pollChanges()}), so unexplored regions never cost a file system call.
+ *
+ * v1 and v2 region files are never converted on the client thread: until a background thread (the writer, or the
+ * prefetcher via {@link #migrateIfNeeded}) has converted one, isBuilt reports its chunks as not built yet,
+ * and {@link #pollChanges()} reports them once they are readable.
+ *
+ * Regions used this session are recorded with a timestamp and merged into access.idx on close,
+ * for the disk quota (see {@link TerrainCacheQuota}).
+ *
+ * Batch writes hold the store lock only to find their region and to publish what they wrote; payload
+ * and header I/O runs outside it (see {@link TerrainRegionFile#writeBatch}), so client-thread reads never
+ * wait on a write's disk latency. Handles in use outside the lock are pinned and closed on last release.
+ *
+ * Other game instances may write the same directory. Writes lock their region file (off the store lock)
+ * and pick up foreign header changes first; reads never wait on another instance's lock and check the
+ * header generation on disk, so they never decode sectors another instance reused as this chunk.
+ * {@link #pollChanges()} reports chunks other instances wrote, so callers can drop what they cached.
+ * Bitmaps of evicted regions are kept (a copy taken at eviction), so isBuilt never reopens a file; the
+ * poll notices files modified since and reports their chunks, reopening them off the client thread.
+ */
+final class TerrainRegionStore {
+    static final int REGION_SHIFT = 5;            // 32 chunks
+    static final int REGION_SIZE = 1 << REGION_SHIFT;
+    static final int CHUNKS_PER_REGION = REGION_SIZE * REGION_SIZE;
+
+    // Enough handles for the widest full-map view (2048 blocks ~ 5x5 regions) plus travel margin.
+    private static final int MAX_OPEN_REGIONS = 32;
+
+    private final File dir;
+
+    // Used for reads, migrations and the odd entry a batch writer did not encode itself.
+    private final ThreadLocal<TerrainChunkCodec> codecs = ThreadLocal.withInitial(TerrainChunkCodec::new);
+
+    private final LinkedHashMap<Long, TerrainRegionFile> open = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, TerrainRegionFile> eldest) {
+            if (size() <= MAX_OPEN_REGIONS) return false;
+            TerrainRegionFile r = eldest.getValue();
+            long key = eldest.getKey();
+            retire(r);
+            indexes.put(key, r.builtSnapshot());
+            evicted.put(key, r.file.lastModified());
+            return true;
+        }
+    };
+
+    // Per-region built bitmap; survives handle eviction. Absent files map to NO_REGION.
+    private final Long2ObjectOpenHashMap<long[]> indexes = new Long2ObjectOpenHashMap<>();
+
+    private static final long[] NO_REGION = new long[CHUNKS_PER_REGION / 64];
+
+    // evicted region key -> file modification time at eviction, to notice writes while it is closed
+    private final HashMap<Long, Long> evicted = new HashMap<>();
+
+    // region key -> epoch seconds of first use this session or last write
+    private final HashMap<Long, Integer> access = new HashMap<>();
+
+    // regions with an r.*.tfc / r.*.lod file in dir
+    private final LongOpenHashSet regionFiles = new LongOpenHashSet();
+    private final LongOpenHashSet lodFiles = new LongOpenHashSet();
+
+    // regions whose file is still v1 or v2; isBuilt reports them as unknown until a background thread converts them
+    private final LongOpenHashSet needsMigration = new LongOpenHashSet();
+    private final Object migrations = new Object();
+
+    // chunks other instances changed, found by header reloads; region key -> chunk bitmap
+    private final Long2ObjectOpenHashMap<long[]> foreign = new Long2ObjectOpenHashMap<>();
+
+    // set by close(); from then on no region opens, so late callers read nothing and write nothing
+    private boolean closed = false;
+
+    /**
+     * Chunk payload handed to batched writes. Writers may {@link #encode} it off the store lock.
+     */
+    static final class Entry {
+        final int cx;
+        final int cz;
+        final int[] color;
+        final short[] topY;
+
+        // write only over a cached copy older than this epoch-seconds stamp (0 = always)
+        int olderThan;
+        boolean written;
+
+        byte[] payload;
+        int payloadLength;
+
+        Entry(int cx, int cz, int[] color, short[] topY) {
+            this.cx = cx;
+            this.cz = cz;
+            this.color = color;
+            this.topY = topY;
+        }
+
+        void encode(TerrainChunkCodec codec) {
+            payloadLength = codec.encode(color, topY);
+            payload = Arrays.copyOf(codec.output(), payloadLength);
+        }
+    }
+
+    TerrainRegionStore(File dir) {
+        this.dir = dir;
+        listFiles(dir, regionFiles, lodFiles);
+    }
+
+    File dir() {
+        return dir;
+    }
+
+    /**
+     * Whether a chunk has been written. Answered from the in-memory index after the first touch of its region,
+     * also once its handle was evicted.
+     */
+    synchronized boolean isBuilt(int cx, int cz) {
+        int rx = Math.floorDiv(cx, REGION_SIZE);
+        int rz = Math.floorDiv(cz, REGION_SIZE);
+        long[] bits = index(rx, rz);
+        if (bits == NO_REGION) return false;
+
+        int local = localIndex(cx, cz);
+        TerrainRegionFile r = open.get(packRegionKey(rx, rz));
+        if (r != null) return r.isBuilt(local);
+        return (bits[local >>> 6] & (1L << local)) != 0;
+    }
+
+    /**
+     * Epoch seconds of the last write of a chunk, 0 if never built or unknown.
+     */
+    synchronized int stamp(int cx, int cz) {
+        if (!isBuilt(cx, cz)) return 0;
+        TerrainRegionFile r = region(Math.floorDiv(cx, REGION_SIZE), Math.floorDiv(cz, REGION_SIZE), false);
+        return r == null ? 0 : r.stamp(localIndex(cx, cz));
+    }
+
+    /**
+     * Read + decode one chunk entry. Returns false if the region or entry was never built, or if another
+     * instance is rewriting the region right now (the chunk is then reported by {@link #pollChanges()}).
+     * The store lock is not held during the read.
+     */
+    boolean readChunk(int cx, int cz, int[] color, short[] topY) {
+        int rx = Math.floorDiv(cx, REGION_SIZE);
+        int rz = Math.floorDiv(cz, REGION_SIZE);
+        TerrainRegionFile r;
+        synchronized (this) {
+            if (!isBuilt(cx, cz)) return false;
+            r = acquire(rx, rz, false);
+        }
+        if (r == null) return false;
+
+        long key = packRegionKey(rx, rz);
+        int local = localIndex(cx, cz);
+        try {
+            TerrainChunkCodec codec = codecs.get();
+            for (int attempt = 0; attempt < 2; attempt++) {
+                int result = r.read(local, codec, color, topY);
+                if (result == TerrainRegionFile.READ_OK) return true;
+                if (result == TerrainRegionFile.READ_MISSING) return false;
+                if (result == TerrainRegionFile.READ_CORRUPT) {
+                    System.out.println("[TechnoFactions] TerrainRegionStore undecodable entry " + cx + "," + cz + " in " + r.file.getName() + " (TerrainCacheTool verify/compact)");
+                    return false;
+                }
+
+                // another instance may have moved the entry and reused its sectors: reload and retry once
+                long[] changed = new long[CHUNKS_PER_REGION / 64];
+                boolean reloaded = r.tryReload(changed);
+                synchronized (this) {
+                    recordForeign(key, changed);
+                }
+                if (!reloaded) break;
+            }
+
+            // a writer holds the region: report the chunk as changed, so it is read again on the next poll
+            long[] retry = new long[CHUNKS_PER_REGION / 64];
+            retry[local >>> 6] |= 1L << local;
+            synchronized (this) {
+                recordForeign(key, retry);
+            }
+            return false;
+        } catch (IOException e) {
+            System.out.println("[TechnoFactions] TerrainRegionStore read failed " + r.file.getName() + ": " + e);
+            return false;
+        } finally {
+            release(r);
+        }
+    }
+
+    /**
+     * Write a batch of entries that all belong to region (rx, rz): payloads first, then one header write.
+     * Called from writer threads; the store lock is only held to find the region and to record the write.
+     * Entries with {@link Entry#olderThan} set are skipped if the cached copy is at least that new; each
+     * entry's {@link Entry#written} says whether it went in. Returns how many entries were written.
+     */
+    int writeRegion(int rx, int rz, Collection<Entry> entries) {
+        migrateIfNeeded(rx, rz);
+        TerrainRegionFile r = acquire(rx, rz, true);
+        if (r == null) return 0;
+
+        long key = packRegionKey(rx, rz);
+        int stamp = nowStamp();
+        for (Entry e : entries) {
+            if (e.payload == null) e.encode(codecs.get());
+        }
+
+        try (FileLock ignored = r.lock()) {
+            long[] changed = r.reloadIfChanged();
+            synchronized (this) {
+                recordForeign(key, changed);
+            }
+
+            // conditional entries are checked while the lock keeps every other writer of this file out
+            int n = 0;
+            int[] locals = new int[entries.size()];
+            byte[][] payloads = new byte[entries.size()][];
+            int[] lens = new int[entries.size()];
+            for (Entry e : entries) {
+                e.written = false;
+                if (Math.floorDiv(e.cx, REGION_SIZE) != rx || Math.floorDiv(e.cz, REGION_SIZE) != rz) continue;
+
+                int local = localIndex(e.cx, e.cz);
+                if (e.olderThan != 0 && r.isBuilt(local) && r.stamp(local) >= e.olderThan) continue;
+                e.written = true;
+                locals[n] = local;
+                payloads[n] = e.payload;
+                lens[n] = e.payloadLength;
+                n++;
+            }
+            if (n == 0) return 0;
+
+            r.writeBatch(locals, payloads, lens, n, stamp);
+
+            synchronized (this) {
+                access.put(key, stamp);
+            }
+            return n;
+        } catch (IOException e) {
+            System.out.println("[TechnoFactions] TerrainRegionStore batch write failed " + r.file.getName() + ": " + e);
+            for (Entry x : entries) x.written = false;
+            return 0;
+        } finally {
+            release(r);
+        }
+    }
+
+    /**
+     * Convert a region file still in the v1 or v2 format. Background threads only: the conversion runs outside the
+     * store lock, and chunks isBuilt already reported as not built are then reported by {@link #pollChanges()}.
+     */
+    void migrateIfNeeded(int rx, int rz) {
+        long key = packRegionKey(rx, rz);
+        synchronized (this) {
+            if (closed || open.containsKey(key) || !regionFiles.contains(key)) return;
+            // opened as v3 before
+            if (!needsMigration.contains(key) && indexes.containsKey(key)) return;
+        }
+
+        File f = new File(dir, regionFileName(rx, rz));
+        synchronized (migrations) {
+            try {
+                if (TerrainRegionFile.needsConversion(f)) TerrainRegionFile.convert(f, codecs.get());
+            } catch (IOException e) {
+                System.out.println("[TechnoFactions] TerrainRegionStore migration failed " + f.getName() + ": " + e);
+                synchronized (this) {
+                    // leave it alone for this session rather than retrying on every poll
+                    needsMigration.remove(key);
+                    indexes.put(key, NO_REGION);
+                }
+                return;
+            }
+        }
+
+        synchronized (this) {
+            if (!needsMigration.remove(key)) return;
+
+            TerrainRegionFile r = region(rx, rz, false);
+            if (r != null) recordForeign(key, r.builtSnapshot());
+        }
+    }
+
+    /**
+     * Chunks other instances wrote since the last call, region key -> chunk bitmap; null if none.
+     * Checks the generation of every open region and whether regions known to have no file got one,
+     * and converts v1 and v2 files isBuilt ran into. File I/O runs outside the store lock.
+     */
+    Long2ObjectOpenHashMap<long[]> pollChanges() {
+        long[] pending;
+        synchronized (this) {
+            pending = needsMigration.toLongArray();
+        }
+        for (long key : pending) migrateIfNeeded((int) (key >> 32), (int) key);
+
+        ArrayList<TerrainRegionFile> handles = new ArrayList<>();
+        ArrayList<Long> keys = new ArrayList<>();
+        HashMap<Long, Long> closedFiles;
+        synchronized (this) {
+            for (Map.Entry<Long, TerrainRegionFile> e : open.entrySet()) {
+                e.getValue().users++;
+                handles.add(e.getValue());
+                keys.add(e.getKey());
+            }
+            closedFiles = new HashMap<>(evicted);
+        }
+
+        for (int i = 0; i < handles.size(); i++) {
+            TerrainRegionFile r = handles.get(i);
+            try {
+                long[] changed = new long[CHUNKS_PER_REGION / 64];
+                // a busy region is simply checked again on the next poll
+                r.tryReload(changed);
+                synchronized (this) {
+                    recordForeign(keys.get(i), changed);
+                }
+            } catch (IOException e) {
+                System.out.println("[TechnoFactions] TerrainRegionStore reload failed " + r.file.getName() + ": " + e);
+            } finally {
+                release(r);
+            }
+        }
+
+        // files other instances created since, and evicted ones they wrote while closed here
+        LongOpenHashSet tfc = new LongOpenHashSet();
+        LongOpenHashSet lod = new LongOpenHashSet();
+        listFiles(dir, tfc, lod);
+
+        LongOpenHashSet modified = new LongOpenHashSet();
+        for (Map.Entry<Long, Long> e : closedFiles.entrySet()) {
+            long key = e.getKey();
+            if (new File(dir, regionFileName((int) (key >> 32), (int) key)).lastModified() != e.getValue()) modified.add(key);
+        }
+
+        synchronized (this) {
+            for (long key : modified) {
+                // region() reports the chunks of a file reopened after it changed
+                if (evicted.containsKey(key)) region((int) (key >> 32), (int) key, false);
+            }
+            lodFiles.addAll(lod);
+            for (long key : tfc) {
+                if (!regionFiles.add(key)) continue;
+                if (indexes.get(key) != NO_REGION) continue;
+
+                indexes.remove(key);
+                TerrainRegionFile r = region((int) (key >> 32), (int) key, false);
+                if (r != null) recordForeign(key, r.builtSnapshot());
+            }
+
+            if (foreign.isEmpty()) return null;
+            Long2ObjectOpenHashMap<long[]> out = new Long2ObjectOpenHashMap<>(foreign);
+            foreign.clear();
+            return out;
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        Iterator<TerrainRegionFile> it = open.values().iterator();
+        while (it.hasNext()) {
+            retire(it.next());
+            it.remove();
+        }
+        indexes.clear();
+        evicted.clear();
+        needsMigration.clear();
+
+        if (!access.isEmpty()) TerrainAccessIndex.merge(dir, access);
+        access.clear();
+    }
+
+    /**
+     * Regions used this session (key -> epoch seconds).
+     */
+    synchronized Map<Long, Integer> accessSnapshot() {
+        return new HashMap<>(access);
+    }
+
+    /**
+     * Delete a region's files for the disk quota, closing its handle first. Refuses regions used this session.
+     */
+    synchronized boolean deleteRegion(int rx, int rz) {
+        long key = packRegionKey(rx, rz);
+        if (access.containsKey(key)) return false;
+
+        File tfc = new File(dir, regionFileName(rx, rz));
+        TerrainRegionFile r = open.get(key);
+        try {
+            // another game instance has it open
+            if (r != null ? r.inUseElsewhere() : TerrainRegionFile.inUse(tfc)) return false;
+        } catch (IOException e) {
+            return false;
+        }
+
+        r = open.remove(key);
+        if (r != null) retire(r);
+        indexes.remove(key);
+        evicted.remove(key);
+        regionFiles.remove(key);
+        lodFiles.remove(key);
+
+        File lod = new File(dir, lodFileName(rx, rz));
+        boolean ok = !tfc.exists() || tfc.delete();
+        if (lod.exists() && !lod.delete()) ok = false;
+        return ok;
+    }
+
+    /**
+     * Whether a region has a LOD sidecar, from memory.
+     */
+    synchronized boolean hasLod(int rx, int rz) {
+        return lodFiles.contains(packRegionKey(rx, rz));
+    }
+
+    /**
+     * LOD sidecar of a region; null if none was written yet. Not under the store lock:
+     * sidecars are replaced atomically, so a read sees a whole file. Background threads only.
+     */
+    TerrainSurfaceLod readLod(int rx, int rz) {
+        if (!hasLod(rx, rz)) return null;
+        return TerrainSurfaceLod.read(new File(dir, lodFileName(rx, rz)));
+    }
+
+    void writeLod(int rx, int rz, TerrainSurfaceLod lod) {
+        try {
+            lod.write(new File(dir, lodFileName(rx, rz)));
+            synchronized (this) {
+                lodFiles.add(packRegionKey(rx, rz));
+            }
+        } catch (IOException e) {
+            System.out.println("[TechnoFactions] TerrainRegionStore LOD write failed " + lodFileName(rx, rz) + ": " + e);
+        }
+    }
+
+    static String regionFileName(int rx, int rz) {
+        return TerrainRegionFile.fileName(rx, rz);
+    }
+
+    static String lodFileName(int rx, int rz) {
+        return "r." + rx + "." + rz + ".lod";
+    }
+
+    static long packRegionKey(int rx, int rz) {
+        return TerrainRegionFile.regionKey(rx, rz);
+    }
+
+    static int localIndex(int cx, int cz) {
+        int localX = cx & (REGION_SIZE - 1);   // 0..31
+        int localZ = cz & (REGION_SIZE - 1);   // 0..31
+        return localZ * REGION_SIZE + localX;
+    }
+
+    private static int nowStamp() {
+        return (int) (System.currentTimeMillis() / 1000L);
+    }
+
+    /**
+     * Add the keys of the region files and LOD sidecars in dir.
+     */
+    private static void listFiles(File dir, LongOpenHashSet tfc, LongOpenHashSet lod) {
+        String[] names = dir.list();
+        if (names == null) return;
+
+        for (String name : names) {
+            long key = TerrainCacheQuota.parseRegionKey(name);
+            if (key == Long.MIN_VALUE) continue;
+            if (name.endsWith(".tfc")) tfc.add(key);
+            else lod.add(key);
+        }
+    }
+
+    private static void closeQuietly(TerrainRegionFile r) {
+        try {
+            r.close();
+        } catch (IOException e) {
+            System.out.println("[TechnoFactions] TerrainRegionStore close failed " + r.file.getName() + ": " + e);
+        }
+    }
+
+    private void recordForeign(long key, long[] changed) {
+        if (changed == null || isEmpty(changed)) return;
+
+        long[] bits = foreign.get(key);
+        if (bits == null) {
+            foreign.put(key, changed);
+        } else {
+            for (int i = 0; i < bits.length; i++) bits[i] |= changed[i];
+        }
+    }
+
+    private static boolean isEmpty(long[] bits) {
+        for (long w : bits) {
+            if (w != 0L) return false;
+        }
+        return true;
+    }
+
+    private long[] index(int rx, int rz) {
+        long key = packRegionKey(rx, rz);
+        long[] bits = indexes.get(key);
+        if (bits != null) return bits;
+
+        TerrainRegionFile r = region(rx, rz, false);
+        if (r == null) {
+            // a v1 or v2 file is not known yet: ask again once it is converted
+            if (needsMigration.contains(key)) return NO_REGION;
+            indexes.put(key, NO_REGION);
+            return NO_REGION;
+        }
+        return r.built;
+    }
+
+    /**
+     * Open (or find) a region and pin its handle for use outside the store lock; pair with {@link #release}.
+     */
+    private synchronized TerrainRegionFile acquire(int rx, int rz, boolean create) {
+        TerrainRegionFile r = region(rx, rz, create);
+        if (r != null) r.users++;
+        return r;
+    }
+
+    private synchronized void release(TerrainRegionFile r) {
+        if (--r.users != 0 || !r.retired) return;
+
+        // evicted while in use: keep what its last user wrote in the retained bitmap
+        long key = TerrainCacheQuota.parseRegionKey(r.file.getName());
+        if (evicted.containsKey(key)) {
+            indexes.put(key, r.builtSnapshot());
+            evicted.put(key, r.file.lastModified());
+        }
+        closeQuietly(r);
+    }
+
+    /**
+     * Close a handle dropped from the open set, or leave that to its last user.
+     */
+    private void retire(TerrainRegionFile r) {
+        r.retired = true;
+        if (r.users == 0) closeQuietly(r);
+    }
+
+    private TerrainRegionFile region(int rx, int rz, boolean create) {
+        if (closed) return null;
+        long key = packRegionKey(rx, rz);
+        TerrainRegionFile r = open.get(key);
+        if (r != null) return r;
+        if (!create && !regionFiles.contains(key)) return null;
+
+        File f = new File(dir, regionFileName(rx, rz));
+        try {
+            // conversion is left to migrateIfNeeded, off the store lock and the client thread
+            if (regionFiles.contains(key) && TerrainRegionFile.needsConversion(f)) {
+                needsMigration.add(key);
+                return null;
+            }
+            r = TerrainRegionFile.open(f, create, codecs.get());
+        } catch (IOException e) {
+            System.out.println("[TechnoFactions] TerrainRegionStore open failed " + f.getName() + ": " + e);
+            return null;
+        }
+        if (r == null) {
+            regionFiles.remove(key);
+            indexes.remove(key);
+            evicted.remove(key);
+            return null;
+        }
+        regionFiles.add(key);
+
+        // reopened after eviction: if the file changed meanwhile, every chunk it had or has may differ
+        if (evicted.containsKey(key)) {
+            long modified = evicted.remove(key);
+            long[] before = indexes.get(key);
+            if (f.lastModified() != modified && before != null) {
+                long[] changed = r.builtSnapshot();
+                for (int i = 0; i < changed.length; i++) changed[i] |= before[i];
+                recordForeign(key, changed);
+            }
+        }
+        if (r.damaged() > 0) {
+            System.out.println("[TechnoFactions] TerrainRegionStore " + f.getName() + ": " + r.damaged() + " truncated entries dropped (TerrainCacheTool verify/compact)");
+        }
+
+        open.put(key, r);
+        indexes.put(key, r.built);
+        access.putIfAbsent(key, nowStamp());
+        return r;
+    }
+}
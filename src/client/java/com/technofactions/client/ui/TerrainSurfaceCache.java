@@ -1,30 +1,51 @@
 package com.technofactions.client.ui;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientChunkEvents;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
-import net.minecraft.block.BlockState;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientWorldEvents;
+import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
 import net.minecraft.block.MapColor;
 import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayerEntity;
 import net.minecraft.client.network.ServerInfo;
 import net.minecraft.client.world.ClientWorld;
-import net.minecraft.util.math.BlockPos;
-import net.minecraft.world.Heightmap;
+import net.minecraft.server.integrated.IntegratedServer;
+import net.minecraft.text.Text;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.world.biome.Biome;
+import net.minecraft.world.dimension.DimensionType;
 import net.minecraft.world.chunk.ChunkStatus;
 import net.minecraft.world.chunk.WorldChunk;
 
 import java.io.File;
-import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
  * Persistent per-server + per-dimension surface cache.
  *
- * Storage: region files like r.<rx>.<rz>.tfc
- * Region size: 32x32 chunks
- * Entry per chunk: 1 byte built + 256 * int (ARGB) + 256 * short (topY) = 1537 bytes
+ * Storage: region files like r.<rx>.<rz>.tfc (see {@link TerrainRegionStore})
+ * Region size: 32x32 chunks, held in memory as flat 512x512 tiles (see {@link TerrainSurfaceTile})
+ * Entry per chunk: 256 * ARGB + 256 * topY, palette + height deltas, deflated (see {@link TerrainChunkCodec})
+ * Cached colors include relief shading against the west/north neighbours; chunk seams are re-shaded once both sides are cached
+ * Older fixed-size (1537 bytes per chunk) files are migrated on first open (see {@link TerrainRegionFile})
+ * Zoomed-out reads use per-tile downsampled levels, persisted as r.<rx>.<rz>.lod (see {@link TerrainSurfaceLod})
+ * Regions around the player and ahead of travel are decoded in the background (see {@link TerrainRegionPrefetcher})
+ * Disk usage is bounded per server and in total by LRU region eviction (see {@link TerrainCacheQuota})
+ * Chunk loads are snapshotted on the client thread and colored + persisted off-thread (see {@link TerrainCapturePipeline})
+ * Per dimension, either the surface or a Y-slice layer is captured and shown (see {@link TerrainMapLayer})
+ * The last few server/dimension sessions stay open, so switching back (e.g. Nether portal round trips) starts warm
  */
 public final class TerrainSurfaceCache {
     // ---- visuals matching your minimap tone ----
@@ -32,38 +53,192 @@ public final class TerrainSurfaceCache {
     private static final boolean WATER_TINT = true;
     private static final int UNKNOWN_ARGB = 0xFF0C0F14;
 
-    private static final int REGION_SHIFT = 5;            // 32 chunks
-    private static final int REGION_SIZE = 1 << REGION_SHIFT;
-    private static final int ENTRY_BYTES = 1 + (256 * 4) + (256 * 2);
+    // Surface colors are precomputed per map color id x height band (shading repeats every 32 blocks)
+    private static final int MAP_COLOR_IDS = 64;
+    private static final int HEIGHT_BAND_SHIFT = 5;
+    private static final int HEIGHT_BANDS = 1 << HEIGHT_BAND_SHIFT;
+    private static final int[] SURFACE_LUT = buildSurfaceLut();
+    private static final int[] TINT_LUT = buildTintLut();
 
-    // Tick fallback: scan this many chunks around player (round-robin, cheap)
-    private static final int TICK_SCAN_RADIUS_CHUNKS = 6;
+    // Relief shading: height delta to the west + north neighbours, clamped, looked up per channel
+    private static final int SLOPE_MAX = 6;
+    private static final int[] SLOPE_LUT = buildSlopeLut();
+
+    // In-memory budget: 1.5 MB per tile with data (+0.5 MB of LOD levels); a 2048-block full map spans up to 5x5 regions
+    private static final int MAX_RESIDENT_TILES = 32;
+    // Tiles without data only hold two bitmaps; cap them anyway so far travel can't grow the table forever
+    private static final int MAX_TILES = 1024;
+
+    // Block-change refresh: at most this many dirty columns are re-captured per tick
+    private static final int DIRTY_COLUMNS_PER_TICK = 256;
+    // dirty columns of cached chunks that are not loaded, kept for when they are; oldest dropped past this
+    private static final int MAX_PARKED_CHUNKS = 4096;
+
+    // Dirty LOD levels are handed to the writer this often even if their tile stays resident
+    private static final int LOD_FLUSH_TICKS = 20 * 60;
+
+    // Prefetch: regions around the player, plus ahead of travel when moving at least this fast (blocks/tick)
+    private static final int PREFETCH_RADIUS_REGIONS = 1;
+    private static final double PREFETCH_MIN_SPEED = 0.6;
+    private static final int PREFETCH_LOOKAHEAD_TICKS = 200;
+    private static final int PREFETCH_STEP_BLOCKS = 256;
+
+    // Server/dimension caches kept open at once (active included); parked ones keep only a few warm tiles
+    private static final int MAX_SESSIONS = 3;
+    private static final int PARKED_RESIDENT_TILES = 8;
+
+    // Disk quota scan cadence while playing (also runs whenever a cache directory is opened)
+    private static final int QUOTA_SCAN_TICKS = 20 * 60 * 10;
+
+    // Layer switch: loaded chunks are looked for this far around the player (max render distance)
+    private static final int LOADED_CHUNK_RADIUS = 32;
+
+    // Capture scheduler: time spent per tick snapshotting queued chunks
+    private static final long CAPTURE_BUDGET_NANOS = 2_000_000L;
+    // The full map counts as a capture focus while it keeps reporting its viewport
+    private static final int VIEWPORT_TIMEOUT_TICKS = 20;
+
+    // Save import: progress shown on the action bar this often
+    private static final int IMPORT_PROGRESS_TICKS = 40;
 
     private static volatile boolean HOOKS_INSTALLED = false;
 
-    private static String activeRootKey = null;           // hashed key: server/save + dimension
-    private static File activeDir = null;
+    // Resident sessions (server/save + dimension), most recently used last; the active one is in here too
+    private static final LinkedHashMap<String, Session> sessions = new LinkedHashMap<>(8, 0.75f, true);
+    private static Session active = null;
+
+    // Client world the active session was bound for; join / world change events rebind, everything else
+    // only compares this reference. The server/save part of the keys is resolved once per connection.
+    private static ClientWorld boundWorld = null;
+    private static String boundServer = null;
+
+    // Capture queue and dirty columns belong to the current client world, not to a session
+    // chunk key -> 256-bit mask of columns whose surface may have changed, oldest first
+    private static final Long2ObjectLinkedOpenHashMap<long[]> dirtyColumns = new Long2ObjectLinkedOpenHashMap<>();
+    // same, for chunks not loaded in the world (seams to re-shade next to them); back in dirtyColumns on load
+    private static final Long2ObjectLinkedOpenHashMap<long[]> parkedColumns = new Long2ObjectLinkedOpenHashMap<>();
+
+    // loaded chunks waiting for capture, drained nearest-first (player or map viewport)
+    private static final LongOpenHashSet pendingCapture = new LongOpenHashSet();
+    private static long[] captureOrder = new long[64];
+    private static int captureOrderSize = 0;
+    private static int captureOrderPos = 0;
+    private static boolean captureOrderStale = false;
+    private static int orderFocusCx, orderFocusCz, orderViewCx, orderViewCz;
+    private static boolean orderHadViewport = false;
+
+    private static long tickCount = 0;
+    private static long viewportTick = Long.MIN_VALUE;
+    private static int viewportCx, viewportCz;
+
+    // scratch for one chunk (capture, disk reads, write-queue copies); client thread only
+    private static final int[] chunkColor = new int[256];
+    private static final short[] chunkTopY = new short[256];
+    private static final byte[] chunkMapColor = new byte[256];
+    private static final int[] chunkTint = new int[256];
+    private static final short[] chunkTopYBefore = new short[256];
 
-    private static final class ChunkCache {
-        boolean built;
-        final int[] color = new int[256];
-        final short[] topY = new short[256];
+    /**
+     * One server/save + dimension + layer: its cache directory, background workers and in-memory tiles.
+     * Sessions stay open while parked, so switching back resumes with warm tiles.
+     */
+    private static final class Session {
+        final String key;                // hashed server/save + dimension, plus the slice layer if any
+        final String worldKey;           // hashed server/save + dimension
+        final File dir;
+        final int ceiling;               // TerrainMapLayer.SURFACE or the slice ceiling
+        final TerrainRegionStore store;
+        final TerrainWriteQueue writer;
+        final TerrainCapturePipeline capture;
+        final TerrainRegionPrefetcher prefetcher;
+        TerrainAnvilImporter importer = null;   // singleplayer save import in progress
+        boolean importStarting = false;         // import waiting for the server to flush the save
+
+        // in-memory hot cache: region tiles keyed by packed (rx, rz); persistent on disk
+        final Long2ObjectOpenHashMap<TerrainSurfaceTile> tiles = new Long2ObjectOpenHashMap<>(256);
+        TerrainSurfaceTile lastTile = null;     // the per-pixel loops stay within one region for long runs
+        long useClock = 0;
+        int residentTiles = 0;
+
+        // chunks snapshotted but not yet published back; block changes meanwhile mark them stale
+        final LongOpenHashSet capturing = new LongOpenHashSet();
+        final LongOpenHashSet staleCaptures = new LongOpenHashSet();
+
+        // region key -> chunks another instance or the import rewrote while the region's LOD sidecar was not
+        // in memory; dropped from its levels once it is (see dropStaleLod)
+        final Long2ObjectOpenHashMap<long[]> staleLod = new Long2ObjectOpenHashMap<>();
+
+        // regions already handed to the prefetcher (dropped again when their tile is evicted)
+        final LongOpenHashSet prefetchRequested = new LongOpenHashSet();
+        int prefetchRx = Integer.MIN_VALUE;
+        int prefetchRz = Integer.MIN_VALUE;
+
+        long hits = 0;
+        long misses = 0;
+        long missingHits = 0;
+        long evictions = 0;
+
+        Session(String key, String worldKey, File dir, int ceiling) {
+            this.key = key;
+            this.worldKey = worldKey;
+            this.dir = dir;
+            this.ceiling = ceiling;
+            this.store = new TerrainRegionStore(dir);
+            this.writer = new TerrainWriteQueue(store);
+            this.capture = new TerrainCapturePipeline(writer);
+            this.prefetcher = new TerrainRegionPrefetcher(store, writer);
+        }
 
-        ChunkCache() {
-            built = false;
-            for (int i = 0; i < 256; i++) {
-                color[i] = UNKNOWN_ARGB;
-                topY[i] = Short.MIN_VALUE;
-            }
+        /**
+         * Finish queued captures, write pending chunks and LOD levels, release the directory.
+         */
+        void close() {
+            if (importer != null) importer.close();
+            importer = null;
+            capture.close();
+            prefetcher.close();
+            for (TerrainSurfaceTile t : tiles.values()) flushLod(this, t, false);
+            writer.close();
+            store.close();
+            tiles.clear();
+            lastTile = null;
+            residentTiles = 0;
         }
     }
 
-    // in-memory hot cache; persistent on disk
-    private static final Map<Long, ChunkCache> mem = new HashMap<>(16384);
+    /**
+     * Snapshot of the active session's in-memory cache counters since it was opened.
+     *
+     * @param hits          reads of chunks already resolved in memory
+     * @param misses        chunk lookups that had to go to the write queue / disk (found or not)
+     * @param missingHits   reads answered "unexplored" from the in-memory negative bits
+     * @param evictions     region tiles dropped by the LRU bound
+     * @param resident      region tiles currently holding data
+     * @param knownMissing  chunks currently known to be missing on disk
+     */
+    public record Stats(long hits, long misses, long missingHits, long evictions, int resident, int knownMissing) {}
+
+    /**
+     * Result of the last disk quota scan; budgets of 0 mean unlimited.
+     *
+     * @param serverBytes     region bytes of the active server/save, all dimensions
+     * @param serverBudget    per-server budget
+     * @param totalBytes      region bytes of the whole minimap cache
+     * @param totalBudget     global budget
+     * @param evictedRegions  regions deleted by that scan
+     * @param evictedBytes    bytes freed by that scan
+     */
+    public record DiskUsage(long serverBytes, long serverBudget, long totalBytes, long totalBudget, int evictedRegions, long evictedBytes) {}
 
-    // round-robin scan offsets
-    private static int scanOffsetX = 0;
-    private static int scanOffsetZ = 0;
+    /**
+     * Progress of a singleplayer save import into the active cache.
+     *
+     * @param regionsDone   region files processed so far
+     * @param regionsTotal  region files found in the save
+     * @param chunks        chunks written to the cache
+     * @param skipped       chunks in the save that could not be read (damaged or torn)
+     */
+    public record ImportProgress(int regionsDone, int regionsTotal, long chunks, long skipped) {}
 
     private TerrainSurfaceCache() {}
 
@@ -81,50 +256,285 @@ public final class TerrainSurfaceCache {
 
         System.out.println("[TechnoFactions] TerrainSurfaceCache hooks installed");
 
-        // Primary: chunk load
+        // Chunk load/unload feed the capture queue; the tick drains it. A load of a chunk the cache already
+        // has re-captures it too: the server sends whole chunks for changes made while it was away and for
+        // bulk edits, which never pass through updateListeners.
         ClientChunkEvents.CHUNK_LOAD.register((world, chunk) -> {
             try {
                 ensureWorld(world);
-                captureChunkIfNeeded(world, chunk);
+                enqueueCapture(chunk.getPos().x, chunk.getPos().z);
+                unparkDirty(packChunkKey(chunk.getPos().x, chunk.getPos().z));
             } catch (Throwable t) {
                 System.out.println("[TechnoFactions] TerrainSurfaceCache CHUNK_LOAD error: " + t);
             }
         });
 
-        // Fallback: scan loaded chunks around player
+        ClientChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> {
+            if (world != MinecraftClient.getInstance().world) return;
+            pendingCapture.remove(packChunkKey(chunk.getPos().x, chunk.getPos().z));
+        });
+
         ClientTickEvents.END_CLIENT_TICK.register(client -> {
             try {
+                tickCount++;
                 if (client.player == null) return;
                 ClientWorld world = client.world;
                 if (world == null) return;
 
                 ensureWorld(world);
-                tickScanNearby(world);
+                if (active == null) return;
+                if (tickCount % LOD_FLUSH_TICKS == 0) {
+                    for (TerrainSurfaceTile t : active.tiles.values()) flushLod(active, t, true);
+                }
+                if (tickCount % QUOTA_SCAN_TICKS == 0) {
+                    scanQuota(cacheRoot());
+                }
+                drainCaptures();
+                drainPrefetched();
+                drainForeignChanges();
+                drainImported(client.player);
+                prefetchAround(client.player);
+                processDirtyColumns(world);
+                processCaptureQueue(world);
             } catch (Throwable t) {
                 System.out.println("[TechnoFactions] TerrainSurfaceCache TICK error: " + t);
             }
         });
+
+        // Session lifecycle: bind on join and on every world change (dimension switch, respawn)
+        ClientPlayConnectionEvents.JOIN.register((handler, sender, client) -> client.execute(() -> {
+            boundServer = null;
+            if (client.world != null) bind(client.world);
+        }));
+        ClientWorldEvents.AFTER_CLIENT_WORLD_CHANGE.register((client, world) -> {
+            try {
+                if (world != null) bind(world);
+            } catch (Throwable t) {
+                System.out.println("[TechnoFactions] TerrainSurfaceCache WORLD_CHANGE error: " + t);
+            }
+        });
+
+        // Drain pending writes when leaving a server/world and when the game closes
+        ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> client.execute(TerrainSurfaceCache::closeAll));
+        ClientLifecycleEvents.CLIENT_STOPPING.register(client -> closeAll());
     }
 
+    /**
+     * Make sure the active session belongs to world. A reference check unless the world changed without
+     * the events seeing it (hooks installed late), so maps and ticks can call it every frame.
+     */
     public static void ensureWorld(ClientWorld world) {
+        if (world == boundWorld && active != null) return;
+
         // IMPORTANT: lazy install so this works even if you forgot to call register()
         installHooksOnce();
+        bind(world);
+    }
+
+    /**
+     * Activate the session of world's server/save, dimension and current layer: resume it if it is still
+     * resident, otherwise open its cache directory. The one place keys are built and hashed.
+     */
+    private static void bind(ClientWorld world) {
+        boundWorld = world;
+        if (boundServer == null) boundServer = serverPart();
+
+        String serverPart = boundServer;
+        String dimPart = dimensionPart(world);
+        int ceiling = TerrainMapLayer.ceiling(dimPart);
+        String worldKey = sha1Hex(serverPart + "|" + dimPart);
+        // slice layers live in a subdirectory of their dimension's cache directory
+        String key = ceiling == TerrainMapLayer.SURFACE ? worldKey : worldKey + "/" + TerrainMapLayer.dirName(ceiling);
+        if (active != null && active.key.equals(key)) return;
+
+        boolean sameWorld = active != null && active.worldKey.equals(worldKey);
+        if (active != null) park(active);
+        resetWorldQueues();
+
+        File root = cacheRoot();
+        Session s = sessions.get(key);
+        if (s != null) {
+            active = s;
+            System.out.println("[TechnoFactions] TerrainSurfaceCache resumed " + s.dir.getAbsolutePath() + " (" + s.residentTiles + " tiles resident)");
+        } else {
+            File dir = new File(root, key);
+            //noinspection ResultOfMethodCallIgnored
+            dir.mkdirs();
+            TerrainCacheQuota.writeMetaIfMissing(dir, serverPart, dimPart);
+
+            active = new Session(key, worldKey, dir, ceiling);
+            sessions.put(key, active);
+            System.out.println("[TechnoFactions] TerrainSurfaceCache activeDir=" + dir.getAbsolutePath());
+
+            closeEldestSessions();
+        }
+
+        // layer switch: no chunk load events will come for what is already loaded
+        if (sameWorld) enqueueLoadedChunks(world);
+
+        scanQuota(root);
+    }
+
+    /**
+     * Switch the current dimension between the surface and its Y-slice layer (see {@link TerrainMapLayer}).
+     */
+    public static void toggleLayer() {
+        MinecraftClient mc = MinecraftClient.getInstance();
+        if (mc.world == null) return;
+
+        String dim = dimensionPart(mc.world);
+        TerrainMapLayer.toggle(dim);
+        bind(mc.world);
+
+        int ceiling = TerrainMapLayer.ceiling(dim);
+        if (mc.player != null) {
+            mc.player.sendMessage(Text.literal(ceiling == TerrainMapLayer.SURFACE ? "Map: surface" : "Map: slice below Y " + ceiling), true);
+        }
+    }
+
+    /**
+     * Render the current dimension of the singleplayer save into the active cache from its region files,
+     * in the background (see {@link TerrainAnvilImporter}), once the server has flushed its loaded chunks to
+     * them. Progress goes to the action bar.
+     */
+    public static void importSingleplayerWorld() {
+        MinecraftClient mc = MinecraftClient.getInstance();
+        if (mc.world == null || mc.player == null) return;
+
+        IntegratedServer server = mc.getServer();
+        if (!mc.isInSingleplayer() || server == null) {
+            mc.player.sendMessage(Text.literal("Map import needs a singleplayer world"), true);
+            return;
+        }
+
+        ensureWorld(mc.world);
+        if (active.importer != null || active.importStarting) {
+            mc.player.sendMessage(Text.literal("Map import already running"), true);
+            return;
+        }
+
+        Session s = active;
+        File regionDir = DimensionType.getSaveDirectory(mc.world.getRegistryKey(), server.getSavePath(WorldSavePath.ROOT))
+                .resolve("region").toFile();
+        Map<String, Biome> biomes = TerrainAnvilImporter.biomes(mc.world);
+        int centerRx = mc.player.getBlockX() >> TerrainSurfaceTile.SHIFT;
+        int centerRz = mc.player.getBlockZ() >> TerrainSurfaceTile.SHIFT;
+
+        // chunks the server holds in memory are missing from the region files, or torn mid-write, until saved
+        s.importStarting = true;
+        mc.player.sendMessage(Text.literal("Map import: saving the world"), true);
+        server.submit(() -> {
+            server.saveAll(true, true, false);
+        }).whenComplete((ignored, err) -> mc.execute(() -> {
+            s.importStarting = false;
+            if (err != null) System.out.println("[TechnoFactions] TerrainSurfaceCache save before import failed: " + err);
+            // closed or switched away meanwhile
+            if (s != active || s.importer != null) return;
+
+            s.importer = new TerrainAnvilImporter(regionDir, s.store, s.writer, s.ceiling, biomes, centerRx, centerRz);
+            System.out.println("[TechnoFactions] TerrainSurfaceCache importing " + s.importer.regionsTotal() + " regions from " + regionDir.getAbsolutePath());
+        }));
+    }
+
+    /**
+     * Progress of the active cache's save import, or null if none is running.
+     */
+    public static ImportProgress importProgress() {
+        if (active == null || active.importer == null) return null;
+
+        TerrainAnvilImporter imp = active.importer;
+        return new ImportProgress(imp.regionsDone(), imp.regionsTotal(), imp.chunksImported(), imp.chunksSkipped());
+    }
+
+    /**
+     * Flush queued captures and release every resident cache directory.
+     * The next ensureWorld() call re-opens whatever world is current.
+     */
+    public static void closeAll() {
+        for (Session s : sessions.values()) s.close();
+        sessions.clear();
+        active = null;
+        boundWorld = null;
+        boundServer = null;
+        resetWorldQueues();
+        TerrainChunkSampler.clearBiomeTints();
+    }
+
+    /**
+     * Hashed server/save + dimension of the active cache, or null. The maps key their remembered
+     * frames by it, so switching back to a dimension can show its last frame right away.
+     */
+    public static String activeKey() {
+        return active != null ? active.key : null;
+    }
+
+    /**
+     * Number of server/dimension caches kept open at once, the active one included.
+     */
+    public static int residentSessions() {
+        return MAX_SESSIONS;
+    }
+
+    /**
+     * Leave a session open in the background: trim it to a few warm tiles and hand dirty LOD levels to its writer.
+     * Captures already submitted still land in it when it becomes active again.
+     */
+    private static void park(Session s) {
+        s.lastTile = null;
+        while (s.residentTiles > PARKED_RESIDENT_TILES) {
+            if (!evictOne(s, true)) break;
+        }
+        for (TerrainSurfaceTile t : s.tiles.values()) flushLod(s, t, true);
+
+        // re-warm around the player on return
+        s.prefetchRx = Integer.MIN_VALUE;
+        s.prefetchRz = Integer.MIN_VALUE;
+    }
 
-        String key = buildRootKey(world);
-        if (activeRootKey != null && activeRootKey.equals(key)) return;
+    /**
+     * Close least recently used sessions beyond MAX_SESSIONS (never the active one).
+     */
+    private static void closeEldestSessions() {
+        Iterator<Session> it = sessions.values().iterator();
+        while (sessions.size() > MAX_SESSIONS && it.hasNext()) {
+            Session s = it.next();
+            if (s == active) continue;
+
+            it.remove();
+            s.close();
+            System.out.println("[TechnoFactions] TerrainSurfaceCache closed " + s.dir.getAbsolutePath());
+        }
+    }
+
+    private static void scanQuota(File root) {
+        ArrayList<TerrainRegionStore> open = new ArrayList<>(sessions.size());
+        for (Session s : sessions.values()) open.add(s.store);
+        TerrainCacheQuota.scanAsync(root, active.store, open);
+    }
 
-        activeRootKey = key;
-        mem.clear();
+    private static void resetWorldQueues() {
+        dirtyColumns.clear();
+        parkedColumns.clear();
+        pendingCapture.clear();
+        captureOrderSize = 0;
+        captureOrderPos = 0;
+        viewportTick = Long.MIN_VALUE;
+    }
 
-        File root = new File(MinecraftClient.getInstance().runDirectory, "config/technofactions/minimap_cache");
-        activeDir = new File(root, key);
-        //noinspection ResultOfMethodCallIgnored
-        activeDir.mkdirs();
+    /**
+     * Disk usage from the last quota scan, or null before the first scan finished.
+     */
+    public static DiskUsage diskUsage() {
+        return TerrainCacheQuota.lastUsage();
+    }
 
-        scanOffsetX = 0;
-        scanOffsetZ = 0;
+    public static Stats stats() {
+        Session s = active;
+        if (s == null) return new Stats(0, 0, 0, 0, 0, 0);
 
-        System.out.println("[TechnoFactions] TerrainSurfaceCache activeDir=" + activeDir.getAbsolutePath());
+        int knownMissing = 0;
+        for (TerrainSurfaceTile t : s.tiles.values()) knownMissing += t.missingCount();
+        return new Stats(s.hits, s.misses, s.missingHits, s.evictions, s.residentTiles, knownMissing);
     }
 
     /**
@@ -132,17 +542,39 @@ public final class TerrainSurfaceCache {
      * Returns false if unknown/unexplored.
      */
     public static boolean read(int x, int z, Sample out) {
-        if (activeDir == null) return false;
+        if (active == null) return false;
 
-        int cx = x >> 4;
-        int cz = z >> 4;
+        TerrainSurfaceTile t = tile(x >> TerrainSurfaceTile.SHIFT, z >> TerrainSurfaceTile.SHIFT);
+        if (!chunkReady(t, x >> 4, z >> 4)) return false;
 
-        ChunkCache cc = getOrLoadChunk(cx, cz);
-        if (cc == null || !cc.built) return false;
+        int i = TerrainSurfaceTile.index(x, z);
+        int argb = t.color[i];
+        short h = t.topY[i];
 
-        int li = ((z & 15) << 4) | (x & 15);
-        int argb = cc.color[li];
-        short h = cc.topY[li];
+        if (argb == UNKNOWN_ARGB || h == Short.MIN_VALUE) return false;
+
+        out.valid = true;
+        out.argb = argb;
+        out.topY = h;
+        return true;
+    }
+
+    /**
+     * Same as {@link #read(int, int, Sample)} from a downsampled level: the area average of the
+     * 2^level x 2^level blocks containing (x,z). Level 0 is the full-resolution read.
+     * See {@link #levelFor(int)}.
+     */
+    public static boolean read(int x, int z, int level, Sample out) {
+        if (level <= 0) return read(x, z, out);
+        if (active == null) return false;
+        if (level > TerrainSurfaceLod.LEVELS) level = TerrainSurfaceLod.LEVELS;
+
+        TerrainSurfaceTile t = tile(x >> TerrainSurfaceTile.SHIFT, z >> TerrainSurfaceTile.SHIFT);
+        if (!lodReady(t, x >> 4, z >> 4)) return false;
+
+        int i = TerrainSurfaceLod.index(level, x, z);
+        int argb = t.lod.color[level][i];
+        short h = t.lod.topY[level][i];
 
         if (argb == UNKNOWN_ARGB || h == Short.MIN_VALUE) return false;
 
@@ -152,220 +584,892 @@ public final class TerrainSurfaceCache {
         return true;
     }
 
+    /**
+     * Bulk form of {@link #read(int, int, int, Sample)} along a row: samples (x + i * stride, z) for
+     * i = 0..count-1 into argbOut[off + i] and, if topYOut is not null, topYOut[off + i].
+     * Unknown samples get unknownArgb and Integer.MIN_VALUE. Each chunk along the row is resolved once
+     * and its samples are copied straight from the tile (or LOD level) arrays.
+     *
+     * @return the number of known samples
+     */
+    public static int readRow(int x, int z, int count, int stride, int level, int unknownArgb, int[] argbOut, int[] topYOut, int off) {
+        if (stride < 1) stride = 1;
+        if (level > TerrainSurfaceLod.LEVELS) level = TerrainSurfaceLod.LEVELS;
+
+        if (active == null) {
+            Arrays.fill(argbOut, off, off + count, unknownArgb);
+            if (topYOut != null) Arrays.fill(topYOut, off, off + count, Integer.MIN_VALUE);
+            return 0;
+        }
+
+        int cz = z >> 4;
+        int known = 0;
+        int i = 0;
+        while (i < count) {
+            int px = x + i * stride;
+            int cx = px >> 4;
+
+            // samples of this row that fall into chunk cx
+            int run = Math.min(count - i, ((cx << 4) + 16 - px + stride - 1) / stride);
+
+            TerrainSurfaceTile t = tile(px >> TerrainSurfaceTile.SHIFT, z >> TerrainSurfaceTile.SHIFT);
+            boolean ready = level <= 0 ? chunkReady(t, cx, cz) : lodReady(t, cx, cz);
+
+            int[] color = null;
+            short[] topY = null;
+            int rowBase = 0;
+            int shift = level <= 0 ? 0 : level;
+            if (ready) {
+                color = level <= 0 ? t.color : t.lod.color[level];
+                topY = level <= 0 ? t.topY : t.lod.topY[level];
+                rowBase = level <= 0 ? (z & TerrainSurfaceTile.MASK) << TerrainSurfaceTile.SHIFT : TerrainSurfaceLod.index(level, 0, z);
+            }
+
+            for (int end = i + run; i < end; i++) {
+                int j = off + i;
+                if (ready) {
+                    int k = rowBase + (((x + i * stride) & TerrainSurfaceTile.MASK) >> shift);
+                    int argb = color[k];
+                    short h = topY[k];
+                    if (argb != UNKNOWN_ARGB && h != Short.MIN_VALUE) {
+                        argbOut[j] = argb;
+                        if (topYOut != null) topYOut[j] = h;
+                        known++;
+                        continue;
+                    }
+                }
+                argbOut[j] = unknownArgb;
+                if (topYOut != null) topYOut[j] = Integer.MIN_VALUE;
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Full-resolution data of chunk (cx, cz) is in tile t, resolving it from the write queue / disk if needed.
+     */
+    private static boolean chunkReady(TerrainSurfaceTile t, int cx, int cz) {
+        int local = TerrainRegionStore.localIndex(cx, cz);
+
+        if (!t.isResolved(local)) {
+            resolveChunk(t, cx, cz, local);
+            return t.isPresent(local);
+        }
+        if (!t.isPresent(local)) {
+            active.missingHits++;
+            return false;
+        }
+        active.hits++;
+        return true;
+    }
+
+    /**
+     * Downsampled levels of chunk (cx, cz) are in tile t's LOD.
+     */
+    private static boolean lodReady(TerrainSurfaceTile t, int cx, int cz) {
+        int local = TerrainRegionStore.localIndex(cx, cz);
+
+        if (t.lod != null && t.lod.isCovered(local)) {
+            active.hits++;
+            return true;
+        }
+        if (t.isResolved(local)) {
+            // present chunks always have their LOD footprint, so this is the negative cache
+            active.missingHits++;
+            return false;
+        }
+        // its sidecar is on the way: don't decode chunks the sidecar most likely covers
+        if (t.lodPending) return false;
+        // not in the sidecar yet (older cache or lost flush): decode it once, put() fills the levels
+        resolveChunk(t, cx, cz, local);
+        return t.lod != null && t.lod.isCovered(local);
+    }
+
+    /**
+     * Downsampled level to read for a given blocks-per-pixel step (0 = full resolution).
+     */
+    public static int levelFor(int blocksPerPixel) {
+        return TerrainSurfaceLod.levelFor(blocksPerPixel);
+    }
+
+    /**
+     * Client world block change (see ClientWorldMixin). Marks the column dirty if the change can affect
+     * its cached surface: anything at or above the cached surface block. Changes deeper down are ignored.
+     */
+    public static void onBlockChanged(ClientWorld world, int x, int y, int z) {
+        if (active == null || world != MinecraftClient.getInstance().world) return;
+        if (y > active.ceiling) return;
+
+        int cx = x >> 4;
+        int cz = z >> 4;
+        long key = packChunkKey(cx, cz);
+
+        // Snapshot already taken: the published result would be stale, re-capture it after it lands.
+        if (active.capturing.contains(key)) {
+            active.staleCaptures.add(key);
+            return;
+        }
+
+        TerrainSurfaceTile t = active.tiles.get(TerrainRegionStore.packRegionKey(x >> TerrainSurfaceTile.SHIFT, z >> TerrainSurfaceTile.SHIFT));
+        int local = TerrainRegionStore.localIndex(cx, cz);
+
+        // Not captured yet (or not resident): nothing stale to fix; capture/disk will provide it.
+        if (t == null || !t.isPresent(local)) return;
+
+        short cachedTop = t.topY[TerrainSurfaceTile.index(x, z)];
+        if (cachedTop != Short.MIN_VALUE && y < cachedTop - 1) return;
+
+        markDirty(key, ((z & 15) << 4) | (x & 15));
+    }
+
+    private static void markDirtyColumn(int x, int z) {
+        markDirty(packChunkKey(x >> 4, z >> 4), ((z & 15) << 4) | (x & 15));
+    }
+
+    private static void markDirty(long key, int li) {
+        long[] mask = dirtyColumns.get(key);
+        if (mask == null) {
+            mask = new long[4];
+            dirtyColumns.put(key, mask);
+        }
+        if (li < 0) {
+            mask[0] = mask[1] = mask[2] = mask[3] = -1L;
+        } else {
+            mask[li >>> 6] |= 1L << li;
+        }
+    }
+
+    /**
+     * The full map reports its view center each tick so chunks on screen are captured first.
+     */
+    public static void focusViewport(int centerX, int centerZ) {
+        viewportCx = centerX >> 4;
+        viewportCz = centerZ >> 4;
+        viewportTick = tickCount;
+    }
+
     public static int unknownArgb() {
         return UNKNOWN_ARGB;
     }
 
     // ---------------------------------------------------------------------
-    // Tick scan fallback
+    // Block-change refresh
     // ---------------------------------------------------------------------
 
-    private static void tickScanNearby(ClientWorld world) {
+    /**
+     * Re-capture dirty columns, oldest chunk first, up to DIRTY_COLUMNS_PER_TICK columns.
+     * Each touched chunk is updated in memory and handed to the write queue once. Columns of a chunk
+     * that is cached but not loaded wait in parkedColumns until it loads.
+     */
+    private static void processDirtyColumns(ClientWorld world) {
+        if (dirtyColumns.isEmpty()) return;
+
+        int budget = DIRTY_COLUMNS_PER_TICK;
+
+        while (budget > 0 && !dirtyColumns.isEmpty()) {
+            long key = dirtyColumns.firstLongKey();
+            long[] mask = dirtyColumns.removeFirst();
+
+            int cx = (int) (key >> 32);
+            int cz = (int) key;
+
+            WorldChunk chunk = null;
+            try {
+                chunk = world.getChunkManager().getChunk(cx, cz, ChunkStatus.FULL, false);
+            } catch (Throwable ignored) {}
+            if (chunk == null) {
+                parkDirty(key, mask);
+                continue;
+            }
+
+            TerrainSurfaceTile t = tile(Math.floorDiv(cx, TerrainRegionStore.REGION_SIZE), Math.floorDiv(cz, TerrainRegionStore.REGION_SIZE));
+            int local = TerrainRegionStore.localIndex(cx, cz);
+            if (!t.isResolved(local)) resolveChunk(t, cx, cz, local);
+            if (!t.isPresent(local)) continue;
+
+            t.copyChunk(local, chunkColor, chunkTopY);
+            System.arraycopy(chunkTopY, 0, chunkTopYBefore, 0, 256);
+            TerrainChunkSampler.sample(chunk, active.ceiling, mask, chunkMapColor, chunkTopY, chunkTint);
+
+            int baseX = cx << 4;
+            int baseZ = cz << 4;
+            for (int w = 0; w < 4; w++) {
+                long bits = mask[w];
+                budget -= Long.bitCount(bits);
+                while (bits != 0) {
+                    int li = (w << 6) | Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+
+                    int lx = li & 15;
+                    int lz = li >> 4;
+                    int h = chunkTopY[li];
+                    int hW = lx > 0 ? chunkTopY[li - 1] : residentTopY(baseX - 1, baseZ + lz);
+                    int hN = lz > 0 ? chunkTopY[li - 16] : residentTopY(baseX + lx, baseZ - 1);
+                    chunkColor[li] = relief(surfaceArgb(chunkMapColor[li], h, chunkTint[li]), h, hW, hN);
+
+                    // the east and south neighbours are shaded against this column's height
+                    if (h != chunkTopYBefore[li]) {
+                        markDirtyColumn(baseX + lx + 1, baseZ + lz);
+                        markDirtyColumn(baseX + lx, baseZ + lz + 1);
+                    }
+                }
+            }
+
+            t.put(local, chunkColor, chunkTopY);
+            writeChunkToDisk(cx, cz, chunkColor, chunkTopY);
+        }
+    }
+
+    private static void parkDirty(long key, long[] mask) {
+        long[] parked = parkedColumns.get(key);
+        if (parked != null) {
+            for (int w = 0; w < 4; w++) parked[w] |= mask[w];
+            return;
+        }
+        if (parkedColumns.size() >= MAX_PARKED_CHUNKS) parkedColumns.removeFirst();
+        parkedColumns.put(key, mask);
+    }
+
+    private static void unparkDirty(long key) {
+        long[] mask = parkedColumns.remove(key);
+        if (mask == null) return;
+
+        long[] dirty = dirtyColumns.get(key);
+        if (dirty == null) {
+            dirtyColumns.put(key, mask);
+        } else {
+            for (int w = 0; w < 4; w++) dirty[w] |= mask[w];
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Capture scheduler
+    // ---------------------------------------------------------------------
+
+    /**
+     * Queue every chunk currently loaded around the player; chunks the layer already has are refreshed.
+     */
+    private static void enqueueLoadedChunks(ClientWorld world) {
+        MinecraftClient mc = MinecraftClient.getInstance();
+        if (mc.player == null) return;
+
+        int pcx = mc.player.getChunkPos().x;
+        int pcz = mc.player.getChunkPos().z;
+        for (int cz = pcz - LOADED_CHUNK_RADIUS; cz <= pcz + LOADED_CHUNK_RADIUS; cz++) {
+            for (int cx = pcx - LOADED_CHUNK_RADIUS; cx <= pcx + LOADED_CHUNK_RADIUS; cx++) {
+                WorldChunk chunk = null;
+                try {
+                    chunk = world.getChunkManager().getChunk(cx, cz, ChunkStatus.FULL, false);
+                } catch (Throwable ignored) {}
+                if (chunk != null) enqueueCapture(cx, cz);
+            }
+        }
+    }
+
+    private static void enqueueCapture(int cx, int cz) {
+        if (active == null) return;
+        if (pendingCapture.add(packChunkKey(cx, cz))) captureOrderStale = true;
+    }
+
+    /**
+     * Capture queued chunks nearest to the player (or the open map's view center) first, until the
+     * per-tick time budget is spent. Nothing queued means nothing to do.
+     */
+    private static void processCaptureQueue(ClientWorld world) {
+        if (pendingCapture.isEmpty()) return;
+
         MinecraftClient mc = MinecraftClient.getInstance();
         if (mc.player == null) return;
 
         int pcx = mc.player.getChunkPos().x;
         int pcz = mc.player.getChunkPos().z;
+        boolean viewport = tickCount - viewportTick <= VIEWPORT_TIMEOUT_TICKS;
 
-        int R = TICK_SCAN_RADIUS_CHUNKS;
+        if (pcx != orderFocusCx || pcz != orderFocusCz || viewport != orderHadViewport
+                || (viewport && (viewportCx != orderViewCx || viewportCz != orderViewCz))) {
+            captureOrderStale = true;
+        }
+        if (captureOrderStale || captureOrderPos >= captureOrderSize) {
+            rebuildCaptureOrder(pcx, pcz, viewport);
+        }
 
-        int sx = scanOffsetX - R;
-        int sz = scanOffsetZ - R;
+        long deadline = System.nanoTime() + CAPTURE_BUDGET_NANOS;
+        while (captureOrderPos < captureOrderSize) {
+            long key = captureOrder[captureOrderPos++];
+            if (!pendingCapture.remove(key)) continue;   // unloaded meanwhile
 
-        int cx = pcx + sx;
-        int cz = pcz + sz;
+            WorldChunk chunk = null;
+            try {
+                chunk = world.getChunkManager().getChunk((int) (key >> 32), (int) key, ChunkStatus.FULL, false);
+            } catch (Throwable ignored) {}
+            if (chunk != null) captureChunkIfNeeded(chunk);
 
-        // advance scan
-        scanOffsetX++;
-        if (scanOffsetX > (R * 2)) {
-            scanOffsetX = 0;
-            scanOffsetZ++;
-            if (scanOffsetZ > (R * 2)) scanOffsetZ = 0;
+            if (System.nanoTime() >= deadline) break;
         }
+    }
 
-        WorldChunk chunk = null;
-        try {
-            chunk = world.getChunkManager().getChunk(cx, cz, ChunkStatus.FULL, false);
-        } catch (Throwable ignored) {}
+    private static void rebuildCaptureOrder(int pcx, int pcz, boolean viewport) {
+        int n = pendingCapture.size();
+        if (captureOrder.length < n) captureOrder = new long[Math.max(n, captureOrder.length * 2)];
+
+        // sort by (distance << 32 | slot), then map slots back to keys
+        long[] keys = new long[n];
+        int i = 0;
+        for (LongIterator it = pendingCapture.iterator(); it.hasNext(); i++) {
+            long key = it.nextLong();
+            keys[i] = key;
+
+            int cx = (int) (key >> 32);
+            int cz = (int) key;
+            long d = distSq(cx - pcx, cz - pcz);
+            if (viewport) d = Math.min(d, distSq(cx - viewportCx, cz - viewportCz));
+            captureOrder[i] = (Math.min(d, Integer.MAX_VALUE) << 32) | i;
+        }
 
-        if (chunk == null) return;
+        Arrays.sort(captureOrder, 0, n);
+        for (i = 0; i < n; i++) captureOrder[i] = keys[(int) captureOrder[i]];
+
+        captureOrderSize = n;
+        captureOrderPos = 0;
+        captureOrderStale = false;
+        orderFocusCx = pcx;
+        orderFocusCz = pcz;
+        orderHadViewport = viewport;
+        orderViewCx = viewportCx;
+        orderViewCz = viewportCz;
+    }
 
-        captureChunkIfNeeded(world, chunk);
+    private static long distSq(long dx, long dz) {
+        return dx * dx + dz * dz;
     }
 
     // ---------------------------------------------------------------------
-    // Capture + persistence
+    // Region prefetch
     // ---------------------------------------------------------------------
 
-    private static void captureChunkIfNeeded(ClientWorld world, WorldChunk chunk) {
-        if (activeDir == null) return;
-
-        int cx = chunk.getPos().x;
-        int cz = chunk.getPos().z;
+    /**
+     * Warm the regions around the player whenever they enter a new region (and right after joining),
+     * and while moving fast, the regions along the direction of travel.
+     */
+    private static void prefetchAround(ClientPlayerEntity player) {
+        if (active == null) return;
+
+        int bx = player.getBlockX();
+        int bz = player.getBlockZ();
+        int rx = bx >> TerrainSurfaceTile.SHIFT;
+        int rz = bz >> TerrainSurfaceTile.SHIFT;
+
+        if (rx != active.prefetchRx || rz != active.prefetchRz) {
+            active.prefetchRx = rx;
+            active.prefetchRz = rz;
+            requestPrefetchAround(rx, rz);
+        }
 
-        long pkey = packChunkKey(cx, cz);
+        if ((tickCount & 7) != 0) return;
 
-        // If already built in memory, skip.
-        ChunkCache cc = mem.get(pkey);
-        if (cc != null && cc.built) return;
+        Vec3d v = player.getVelocity();
+        double speed = Math.sqrt(v.x * v.x + v.z * v.z);
+        if (speed < PREFETCH_MIN_SPEED) return;
 
-        // If exists on disk, load it (and skip capture)
-        ChunkCache disk = readChunkFromDisk(cx, cz);
-        if (disk != null && disk.built) {
-            mem.put(pkey, disk);
-            return;
+        double reach = speed * PREFETCH_LOOKAHEAD_TICKS;
+        double dirX = v.x / speed;
+        double dirZ = v.z / speed;
+        for (double d = PREFETCH_STEP_BLOCKS; d <= reach; d += PREFETCH_STEP_BLOCKS) {
+            int ax = (int) Math.floor(bx + dirX * d);
+            int az = (int) Math.floor(bz + dirZ * d);
+            requestPrefetchAround(ax >> TerrainSurfaceTile.SHIFT, az >> TerrainSurfaceTile.SHIFT);
         }
+    }
 
-        if (cc == null) {
-            cc = new ChunkCache();
-            mem.put(pkey, cc);
+    private static void requestPrefetchAround(int rx, int rz) {
+        int r = PREFETCH_RADIUS_REGIONS;
+        for (int dz = -r; dz <= r; dz++) {
+            for (int dx = -r; dx <= r; dx++) {
+                if (active.prefetchRequested.add(TerrainRegionStore.packRegionKey(rx + dx, rz + dz))) {
+                    active.prefetcher.request(rx + dx, rz + dz);
+                }
+            }
         }
+    }
 
-        buildFromWorld(world, cx, cz, cc);
-        cc.built = true;
-        writeChunkToDisk(cx, cz, cc);
+    /**
+     * Merge regions decoded by the prefetcher into the resident tiles.
+     */
+    private static void drainPrefetched() {
+        if (active == null) return;
+
+        TerrainSurfaceTile loaded;
+        while ((loaded = active.prefetcher.poll()) != null) {
+            long key = TerrainRegionStore.packRegionKey(loaded.rx, loaded.rz);
+            TerrainSurfaceTile t = active.tiles.get(key);
+
+            if (t == null) {
+                if (active.tiles.size() >= MAX_TILES) evictOne(active, false);
+                active.tiles.put(key, loaded);
+                loaded.lastUse = ++active.useClock;
+                dropStaleLod(loaded);
+                if (loaded.hasData()) onTileAllocated(loaded);
+                continue;
+            }
+
+            boolean hadData = t.hasData();
+            t.adopt(loaded);
+            dropStaleLod(t);
+            if (!hadData && t.hasData()) onTileAllocated(t);
+        }
     }
 
-    private static void buildFromWorld(ClientWorld world, int cx, int cz, ChunkCache cc) {
-        BlockPos.Mutable pos = new BlockPos.Mutable();
-        int baseX = cx << 4;
-        int baseZ = cz << 4;
+    /**
+     * Let resident tiles re-read chunks the save import wrote, and queue its LOD levels for regions not in memory.
+     * Tiles in memory rebuild their levels from the chunks as they resolve them.
+     */
+    private static void drainImported(ClientPlayerEntity player) {
+        if (active == null || active.importer == null) return;
+
+        TerrainAnvilImporter imp = active.importer;
+        // checked before draining: once the workers are done, every region is already in the queue
+        boolean finished = imp.isFinished();
+        TerrainAnvilImporter.Region r;
+        while ((r = imp.poll()) != null) {
+            long rkey = TerrainRegionStore.packRegionKey(r.rx, r.rz);
+            TerrainSurfaceTile t = active.tiles.get(rkey);
+            if (t == null) {
+                active.writer.submitLod(r.rx, r.rz, r.lod);
+                continue;
+            }
 
-        for (int lz = 0; lz < 16; lz++) {
-            for (int lx = 0; lx < 16; lx++) {
-                int x = baseX + lx;
-                int z = baseZ + lz;
+            unresolve(t, r.chunks);
+            if (t.lodPending) markStaleLod(rkey, r.chunks);
+        }
 
-                int topY;
-                try {
-                    topY = world.getTopY(Heightmap.Type.WORLD_SURFACE, x, z);
-                } catch (Throwable t) {
-                    int li = (lz << 4) | lx;
-                    cc.color[li] = UNKNOWN_ARGB;
-                    cc.topY[li] = Short.MIN_VALUE;
+        if (finished) {
+            active.importer = null;
+            imp.close();
+            String skipped = imp.chunksSkipped() > 0 ? ", " + imp.chunksSkipped() + " unreadable chunks skipped" : "";
+            player.sendMessage(Text.literal("Map import done: " + imp.chunksImported() + " chunks" + skipped), true);
+            System.out.println("[TechnoFactions] TerrainSurfaceCache import done: " + imp.chunksImported() + " chunks from " + imp.regionsTotal() + " regions" + skipped);
+        } else if (tickCount % IMPORT_PROGRESS_TICKS == 0) {
+            player.sendMessage(Text.literal("Map import: " + imp.regionsDone() + "/" + imp.regionsTotal() + " regions, " + imp.chunksImported() + " chunks"), true);
+        }
+    }
+
+    /**
+     * Chunks another game instance wrote to the shared cache directory: resident tiles re-read them on next use,
+     * and their LOD footprints are dropped now or when the region's sidecar is loaded.
+     * Chunks this instance is capturing itself keep what it is about to write.
+     */
+    private static void drainForeignChanges() {
+        if (active == null) return;
+
+        Long2ObjectOpenHashMap<long[]> changed;
+        while ((changed = active.prefetcher.pollChanges()) != null) {
+            for (Long2ObjectOpenHashMap.Entry<long[]> e : changed.long2ObjectEntrySet()) {
+                long rkey = e.getLongKey();
+                TerrainSurfaceTile t = active.tiles.get(rkey);
+                long[] bits = e.getValue();
+                if (t == null) {
+                    markStaleLod(rkey, bits);
                     continue;
                 }
 
-                int y = Math.max(world.getBottomY(), topY - 1);
-                pos.set(x, y, z);
+                int baseCx = (int) (rkey >> 32) << TerrainRegionStore.REGION_SHIFT;
+                int baseCz = (int) rkey << TerrainRegionStore.REGION_SHIFT;
+                for (int local = 0; local < TerrainRegionStore.CHUNKS_PER_REGION; local++) {
+                    if ((bits[local >>> 6] & (1L << local)) == 0) continue;
+                    long ckey = packChunkKey(baseCx + (local & (TerrainRegionStore.REGION_SIZE - 1)), baseCz + (local >> TerrainRegionStore.REGION_SHIFT));
+                    if (active.capturing.contains(ckey)) bits[local >>> 6] &= ~(1L << local);
+                }
+                unresolve(t, bits);
+                if (t.lodPending) markStaleLod(rkey, bits);
+            }
+        }
+    }
 
-                BlockState state = world.getBlockState(pos);
-                MapColor mapColor = state.getMapColor(world, pos);
+    private static void markStaleLod(long rkey, long[] chunks) {
+        long[] stale = active.staleLod.get(rkey);
+        if (stale == null) {
+            active.staleLod.put(rkey, chunks.clone());
+            return;
+        }
+        for (int w = 0; w < stale.length; w++) stale[w] |= chunks[w];
+    }
 
-                int rgb = mapColor.color;
-                rgb = shadeByHeight(rgb, topY);
+    /**
+     * Once a tile's LOD levels are in memory (or it turned out to have none), drop the footprints of chunks
+     * rewritten since its sidecar was written.
+     */
+    private static void dropStaleLod(TerrainSurfaceTile t) {
+        if (t.lodPending) return;
 
-                if (WATER_TINT && mapColor == MapColor.WATER_BLUE) {
-                    rgb = mix(rgb, 0x2A4DFF, 0.35f);
-                }
+        long[] stale = active.staleLod.remove(TerrainRegionStore.packRegionKey(t.rx, t.rz));
+        if (stale != null && t.lod != null) t.lod.invalidate(stale);
+    }
 
-                rgb = brighten(rgb, BRIGHTNESS);
+    /**
+     * Forget the chunks set in a region chunk bitmap, so reads resolve them again from the write queue / disk.
+     */
+    private static void unresolve(TerrainSurfaceTile t, long[] chunks) {
+        for (int w = 0; w < chunks.length; w++) {
+            long bits = chunks[w];
+            while (bits != 0) {
+                t.unresolve((w << 6) | Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Capture + persistence
+    // ---------------------------------------------------------------------
+
+    /**
+     * Capture a loaded chunk unless a capture of it is in flight. A chunk the tile already has is captured
+     * again against its cached copy; the pipeline drops the result if nothing changed.
+     */
+    private static void captureChunkIfNeeded(WorldChunk chunk) {
+        if (active == null) return;
+
+        int cx = chunk.getPos().x;
+        int cz = chunk.getPos().z;
+        long key = packChunkKey(cx, cz);
+        if (active.capturing.contains(key)) return;
 
-                int argb = 0xFF000000 | (rgb & 0x00FFFFFF);
-                int li = (lz << 4) | lx;
+        TerrainSurfaceTile t = tile(Math.floorDiv(cx, TerrainRegionStore.REGION_SIZE), Math.floorDiv(cz, TerrainRegionStore.REGION_SIZE));
+        int local = TerrainRegionStore.localIndex(cx, cz);
 
-                cc.color[li] = argb;
-                cc.topY[li] = (short) clampShort(topY);
+        if (!t.isResolved(local)) resolveChunk(t, cx, cz, local);
+
+        TerrainCapturePipeline.Snapshot snap = new TerrainCapturePipeline.Snapshot(cx, cz);
+        if (t.isPresent(local)) {
+            snap.cachedColor = new int[256];
+            snap.cachedTopY = new short[256];
+            t.copyChunk(local, snap.cachedColor, snap.cachedTopY);
+        }
+        TerrainChunkSampler.sample(chunk, active.ceiling, snap.mapColor, snap.topY, snap.tint);
+
+        int baseX = cx << 4;
+        int baseZ = cz << 4;
+        snap.westKnown = isResidentChunk(cx - 1, cz);
+        snap.northKnown = isResidentChunk(cx, cz - 1);
+        for (int i = 0; i < 16; i++) {
+            snap.westTopY[i] = snap.westKnown ? residentTopY(baseX - 1, baseZ + i) : Short.MIN_VALUE;
+            snap.northTopY[i] = snap.northKnown ? residentTopY(baseX + i, baseZ - 1) : Short.MIN_VALUE;
+        }
+
+        active.capturing.add(key);
+        active.capture.submit(snap);
+    }
+
+    /**
+     * Publish chunks finished by the capture workers (already queued for disk by them).
+     */
+    private static void drainCaptures() {
+        if (active == null) return;
+
+        TerrainCapturePipeline.Result r;
+        while ((r = active.capture.poll()) != null) {
+            long key = packChunkKey(r.cx, r.cz);
+            active.capturing.remove(key);
+            if (r.unchanged) {
+                if (active.staleCaptures.remove(key)) markDirty(key, -1);
+                continue;
             }
+
+            TerrainSurfaceTile t = tile(Math.floorDiv(r.cx, TerrainRegionStore.REGION_SIZE), Math.floorDiv(r.cz, TerrainRegionStore.REGION_SIZE));
+            boolean hadData = t.hasData();
+            t.put(TerrainRegionStore.localIndex(r.cx, r.cz), r.color, r.topY);
+            if (!hadData) onTileAllocated(t);
+
+            if (active.staleCaptures.remove(key)) markDirty(key, -1);
+            patchSeams(r);
         }
     }
 
-    private static ChunkCache getOrLoadChunk(int cx, int cz) {
-        long key = packChunkKey(cx, cz);
-        ChunkCache cached = mem.get(key);
-        if (cached != null) return cached;
+    /**
+     * Relief shading is computed against the west and north neighbours. A chunk captured before its
+     * neighbour was cached has a flat border there; once both are cached, re-shade the borders that
+     * were computed without the other side (re-sampled from the world via the dirty columns).
+     */
+    private static void patchSeams(TerrainCapturePipeline.Result r) {
+        int baseX = r.cx << 4;
+        int baseZ = r.cz << 4;
+
+        // this chunk's own borders, if the neighbour arrived after the snapshot
+        if (!r.westKnown && isResidentChunk(r.cx - 1, r.cz)) {
+            for (int i = 0; i < 16; i++) markDirtyColumn(baseX, baseZ + i);
+        }
+        if (!r.northKnown && isResidentChunk(r.cx, r.cz - 1)) {
+            for (int i = 0; i < 16; i++) markDirtyColumn(baseX + i, baseZ);
+        }
 
-        ChunkCache loaded = readChunkFromDisk(cx, cz);
-        if (loaded != null) {
-            mem.put(key, loaded);
-            return loaded;
+        // the east / south neighbours were shaded without this chunk
+        if (isResidentChunk(r.cx + 1, r.cz)) {
+            for (int i = 0; i < 16; i++) markDirtyColumn(baseX + 16, baseZ + i);
+        }
+        if (isResidentChunk(r.cx, r.cz + 1)) {
+            for (int i = 0; i < 16; i++) markDirtyColumn(baseX + i, baseZ + 16);
         }
+    }
 
-        ChunkCache empty = new ChunkCache();
-        mem.put(key, empty);
-        return empty;
+    /**
+     * Chunk present in a resident tile. Never loads anything.
+     */
+    private static boolean isResidentChunk(int cx, int cz) {
+        TerrainSurfaceTile t = active.tiles.get(TerrainRegionStore.packRegionKey(
+                Math.floorDiv(cx, TerrainRegionStore.REGION_SIZE), Math.floorDiv(cz, TerrainRegionStore.REGION_SIZE)));
+        return t != null && t.isPresent(TerrainRegionStore.localIndex(cx, cz));
     }
 
-    private static void writeChunkToDisk(int cx, int cz, ChunkCache cc) {
-        if (activeDir == null) return;
+    /**
+     * Cached topY of a column in a resident tile, Short.MIN_VALUE if not cached. Never loads anything.
+     */
+    private static short residentTopY(int x, int z) {
+        TerrainSurfaceTile t = active.tiles.get(TerrainRegionStore.packRegionKey(x >> TerrainSurfaceTile.SHIFT, z >> TerrainSurfaceTile.SHIFT));
+        if (t == null || !t.isPresent(TerrainRegionStore.localIndex(x >> 4, z >> 4))) return Short.MIN_VALUE;
+        return t.topY[TerrainSurfaceTile.index(x, z)];
+    }
 
-        int rx = Math.floorDiv(cx, REGION_SIZE);
-        int rz = Math.floorDiv(cz, REGION_SIZE);
+    /**
+     * Shade a column by the height difference to its west and north neighbours (lighter facing up the slope,
+     * darker facing down). Unknown heights (Short.MIN_VALUE) count as flat.
+     */
+    static int relief(int argb, int h, int hW, int hN) {
+        if (h == Short.MIN_VALUE) return argb;
+        if (hW == Short.MIN_VALUE) hW = h;
+        if (hN == Short.MIN_VALUE) hN = h;
+
+        int dh = (hW - h) + (hN - h);
+        dh = Math.max(-SLOPE_MAX, Math.min(SLOPE_MAX, dh));
+
+        int band = (dh + SLOPE_MAX) << 8;
+        int r = SLOPE_LUT[band | ((argb >> 16) & 0xFF)];
+        int g = SLOPE_LUT[band | ((argb >> 8) & 0xFF)];
+        int b = SLOPE_LUT[band | (argb & 0xFF)];
+        return (argb & 0xFF000000) | (r << 16) | (g << 8) | b;
+    }
 
-        int localX = cx - rx * REGION_SIZE;   // 0..31
-        int localZ = cz - rz * REGION_SIZE;   // 0..31
-        int localIndex = localZ * REGION_SIZE + localX;
+    /**
+     * {@link #relief} for a whole chunk, with the neighbouring chunks' border heights (16 each, Short.MIN_VALUE = unknown).
+     * Pure, safe off the client thread.
+     */
+    static void applyRelief(int[] color, short[] topY, short[] westTopY, short[] northTopY) {
+        for (int li = 0; li < 256; li++) {
+            int lx = li & 15;
+            int lz = li >> 4;
+            int hW = lx > 0 ? topY[li - 1] : westTopY[lz];
+            int hN = lz > 0 ? topY[li - 16] : northTopY[lx];
+            color[li] = relief(color[li], topY[li], hW, hN);
+        }
+    }
 
-        File f = new File(activeDir, "r." + rx + "." + rz + ".tfc");
-        long offset = (long) localIndex * (long) ENTRY_BYTES;
+    /**
+     * Shaded channel value per slope band (-SLOPE_MAX..SLOPE_MAX) and input channel value.
+     */
+    private static int[] buildSlopeLut() {
+        int[] lut = new int[(SLOPE_MAX * 2 + 1) << 8];
+        for (int dh = -SLOPE_MAX; dh <= SLOPE_MAX; dh++) {
+            int delta = (int) (-dh * 0.03f * 255f);
+            int band = (dh + SLOPE_MAX) << 8;
+            for (int c = 0; c < 256; c++) lut[band | c] = clamp255(c + delta);
+        }
+        return lut;
+    }
 
-        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
-            raf.seek(offset);
-            raf.writeByte(1); // built
-            for (int i = 0; i < 256; i++) raf.writeInt(cc.color[i]);
-            for (int i = 0; i < 256; i++) raf.writeShort(cc.topY[i]);
+    /**
+     * Shaded ARGB for a surface block's map color, or for its biome tint if it has one (non-zero ARGB,
+     * see {@link TerrainChunkSampler}). Pure function of its inputs, safe off the client thread.
+     */
+    static int surfaceArgb(int mapColorId, int topY, int tint) {
+        int band = topY & (HEIGHT_BANDS - 1);
+        if (tint == 0) return SURFACE_LUT[((mapColorId & (MAP_COLOR_IDS - 1)) << HEIGHT_BAND_SHIFT) | band];
+
+        int base = band << 8;
+        int r = TINT_LUT[base | ((tint >> 16) & 0xFF)];
+        int g = TINT_LUT[base | ((tint >> 8) & 0xFF)];
+        int b = TINT_LUT[base | (tint & 0xFF)];
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
 
-            // This is the proof line you should see at least once.
-            // If you never see it, capture isn't running.
-            // Keep it light: only prints occasionally.
-            if ((cx & 31) == 0 && (cz & 31) == 0) {
-                System.out.println("[TechnoFactions] TerrainSurfaceCache wrote " + f.getName() + " (chunk " + cx + "," + cz + ")");
+    /**
+     * Height shading + brightness per height band and channel value, for biome-tinted columns.
+     * Biome water colors replace the fixed water tint there.
+     */
+    private static int[] buildTintLut() {
+        int[] lut = new int[HEIGHT_BANDS << 8];
+        for (int band = 0; band < HEIGHT_BANDS; band++) {
+            for (int c = 0; c < 256; c++) {
+                lut[(band << 8) | c] = brighten(shadeByHeight(c, band), BRIGHTNESS) & 0xFF;
             }
-        } catch (Throwable t) {
-            System.out.println("[TechnoFactions] TerrainSurfaceCache write failed: " + t);
         }
+        return lut;
     }
 
-    private static ChunkCache readChunkFromDisk(int cx, int cz) {
-        if (activeDir == null) return null;
+    /**
+     * Every map color id x height band, run once through the height shading, water tint and brightness.
+     * Ids without a map color come out as unknown.
+     */
+    private static int[] buildSurfaceLut() {
+        int[] lut = new int[MAP_COLOR_IDS * HEIGHT_BANDS];
+        for (int id = 0; id < MAP_COLOR_IDS; id++) {
+            MapColor mapColor = null;
+            try {
+                mapColor = MapColor.get(id);
+            } catch (Throwable ignored) {}
 
-        int rx = Math.floorDiv(cx, REGION_SIZE);
-        int rz = Math.floorDiv(cz, REGION_SIZE);
+            for (int band = 0; band < HEIGHT_BANDS; band++) {
+                int i = (id << HEIGHT_BAND_SHIFT) | band;
+                if (mapColor == null) {
+                    lut[i] = UNKNOWN_ARGB;
+                    continue;
+                }
 
-        int localX = cx - rx * REGION_SIZE;
-        int localZ = cz - rz * REGION_SIZE;
-        if (localX < 0 || localX >= REGION_SIZE || localZ < 0 || localZ >= REGION_SIZE) return null;
+                int rgb = mapColor.color;
+                rgb = shadeByHeight(rgb, band);
 
-        int localIndex = localZ * REGION_SIZE + localX;
+                if (WATER_TINT && mapColor == MapColor.WATER_BLUE) {
+                    rgb = mix(rgb, 0x2A4DFF, 0.35f);
+                }
 
-        File f = new File(activeDir, "r." + rx + "." + rz + ".tfc");
-        if (!f.exists()) return null;
+                rgb = brighten(rgb, BRIGHTNESS);
 
-        long offset = (long) localIndex * (long) ENTRY_BYTES;
+                lut[i] = 0xFF000000 | (rgb & 0x00FFFFFF);
+            }
+        }
+        return lut;
+    }
 
-        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
-            if (raf.length() < offset + ENTRY_BYTES) return null;
-            raf.seek(offset);
+    /**
+     * Region tile for (rx, rz), created on first touch. Tiles are never null.
+     */
+    private static TerrainSurfaceTile tile(int rx, int rz) {
+        TerrainSurfaceTile t = active.lastTile;
+        if (t != null && t.rx == rx && t.rz == rz) return t;
+
+        long key = TerrainRegionStore.packRegionKey(rx, rz);
+        t = active.tiles.get(key);
+        boolean loaded = false;
+        if (t == null) {
+            if (active.tiles.size() >= MAX_TILES) evictOne(active, false);
+            t = new TerrainSurfaceTile(rx, rz);
+            active.tiles.put(key, t);
+            t.lod = active.writer.peekLod(rx, rz);
+            loaded = t.lod != null;
+
+            // sidecars are read by the prefetcher, never here; zoomed-out reads wait for it (see lodReady)
+            if (!loaded && active.store.hasLod(rx, rz)) {
+                t.lodPending = true;
+                active.prefetcher.requestLod(rx, rz);
+            }
+            dropStaleLod(t);
+        }
+
+        t.lastUse = ++active.useClock;
+        active.lastTile = t;
+        if (loaded) onTileAllocated(t);
+        return t;
+    }
+
+    /**
+     * Hand a tile's changed LOD levels to the writer; a copy if the tile stays in use.
+     */
+    private static void flushLod(Session s, TerrainSurfaceTile t, boolean copy) {
+        if (t.lod == null || !t.lod.dirty) return;
+
+        t.lod.dirty = false;
+        s.writer.submitLod(t.rx, t.rz, copy ? t.lod.copy() : t.lod);
+    }
+
+    /**
+     * Write queue first (captured but not yet on disk), then the region index, then disk.
+     * Unexplored chunks only flip a bit in the tile.
+     */
+    private static void resolveChunk(TerrainSurfaceTile t, int cx, int cz, int local) {
+        active.misses++;
+
+        if (readChunkFromDisk(cx, cz, chunkColor, chunkTopY)) {
+            boolean hadData = t.hasData();
+            t.put(local, chunkColor, chunkTopY);
+            if (!hadData) onTileAllocated(t);
+        } else {
+            t.markMissing(local);
+        }
+    }
+
+    private static void onTileAllocated(TerrainSurfaceTile t) {
+        active.residentTiles++;
+        while (active.residentTiles > MAX_RESIDENT_TILES) {
+            if (!evictOne(active, true)) break;
+        }
+    }
 
-            int built = raf.readUnsignedByte();
-            if (built != 1) return null;
+    /**
+     * Drop a session's least recently used tile (only tiles with data if withData). Never drops its lastTile.
+     */
+    private static boolean evictOne(Session s, boolean withData) {
+        TerrainSurfaceTile victim = null;
+        for (TerrainSurfaceTile t : s.tiles.values()) {
+            if (t == s.lastTile) continue;
+            if (withData && !t.hasData()) continue;
+            if (victim == null || t.lastUse < victim.lastUse) victim = t;
+        }
+        if (victim == null) return false;
 
-            ChunkCache cc = new ChunkCache();
-            cc.built = true;
+        s.tiles.remove(TerrainRegionStore.packRegionKey(victim.rx, victim.rz));
+        s.prefetchRequested.remove(TerrainRegionStore.packRegionKey(victim.rx, victim.rz));
+        flushLod(s, victim, false);
+        if (victim.hasData()) s.residentTiles--;
+        s.evictions++;
+        return true;
+    }
 
-            for (int i = 0; i < 256; i++) cc.color[i] = raf.readInt();
-            for (int i = 0; i < 256; i++) cc.topY[i] = raf.readShort();
+    private static void writeChunkToDisk(int cx, int cz, int[] color, short[] topY) {
+        if (active == null) return;
 
-            return cc;
+        try {
+            active.writer.submit(cx, cz, color, topY);
+        } catch (Throwable t) {
+            System.out.println("[TechnoFactions] TerrainSurfaceCache queue failed: " + t);
+        }
+    }
+
+    private static boolean readChunkFromDisk(int cx, int cz, int[] color, short[] topY) {
+        if (active == null) return false;
+
+        try {
+            if (active.writer.peek(cx, cz, color, topY)) return true;
+
+            // Region index answers "never built" from memory, without touching the file.
+            if (!active.store.isBuilt(cx, cz)) return false;
+
+            return active.store.readChunk(cx, cz, color, topY);
         } catch (Throwable t) {
             System.out.println("[TechnoFactions] TerrainSurfaceCache read failed: " + t);
-            return null;
+            return false;
         }
     }
 
+    private static long packChunkKey(int cx, int cz) {
+        return ((long) cx << 32) ^ (cz & 0xFFFFFFFFL);
+    }
+
     // ---------------------------------------------------------------------
     // Root key (1.21.x safe)
     // ---------------------------------------------------------------------
 
-    private static String buildRootKey(ClientWorld world) {
-        MinecraftClient mc = MinecraftClient.getInstance();
+    private static File cacheRoot() {
+        return new File(MinecraftClient.getInstance().runDirectory, "config/technofactions/minimap_cache");
+    }
 
-        String dimPart;
+    private static String dimensionPart(ClientWorld world) {
         try {
-            dimPart = world.getRegistryKey().getValue().toString();
+            return world.getRegistryKey().getValue().toString();
         } catch (Throwable t) {
-            dimPart = "unknown_dimension";
+            return "unknown_dimension";
         }
+    }
+
+    private static String serverPart() {
+        MinecraftClient mc = MinecraftClient.getInstance();
 
         String worldPart = null;
 
@@ -392,25 +1496,26 @@ public final class TerrainSurfaceCache {
             }
         }
 
-        return sha1Hex(worldPart + "|" + dimPart);
+        return worldPart;
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private static String sha1Hex(String s) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
             byte[] dig = md.digest(s.getBytes(StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder(dig.length * 2);
-            for (byte b : dig) sb.append(String.format("%02x", b));
-            return sb.toString();
+            char[] hex = new char[dig.length * 2];
+            for (int i = 0; i < dig.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(dig[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX_DIGITS[dig[i] & 0xF];
+            }
+            return new String(hex);
         } catch (Throwable t) {
             return Integer.toHexString(s.hashCode());
         }
     }
 
-    private static long packChunkKey(int cx, int cz) {
-        return ((long) cx << 32) ^ (cz & 0xFFFFFFFFL);
-    }
-
     // ---------------------------------------------------------------------
     // Color helpers
     // ---------------------------------------------------------------------
@@ -460,10 +1565,4 @@ public final class TerrainSurfaceCache {
     private static int clamp255(int v) {
         return v < 0 ? 0 : Math.min(255, v);
     }
-
-    private static int clampShort(int v) {
-        if (v < Short.MIN_VALUE + 1) return Short.MIN_VALUE + 1;
-        if (v > Short.MAX_VALUE) return Short.MAX_VALUE;
-        return v;
-    }
 }
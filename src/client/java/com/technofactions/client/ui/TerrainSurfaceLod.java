@@ -0,0 +1,272 @@
+package com.technofactions.client.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Downsampled levels of one {@link TerrainSurfaceTile}: level L holds one pixel per 2^L x 2^L blocks
+ * (L = 1..4, i.e. 2, 4, 8 and 16 blocks per pixel), area-averaged over the known blocks: each level is
+ * averaged from the one below, weighted by how many known blocks every source pixel stands for.
+ *
+ * A level pixel never spans more than one chunk, so each captured chunk updates its own footprint in
+ * every level. "covered" marks chunks whose footprint is filled in; a chunk rewritten elsewhere is
+ * {@link #invalidate}d until it is put again. Persisted as r.rx.rz.lod next to
+ * the region file, so zoomed-out views don't have to decode every chunk of a region.
+ */
+final class TerrainSurfaceLod {
+    static final int LEVELS = 4;
+
+    private static final int MAGIC = 0x54464C31;   // "TFL1"
+
+    final int[][] color = new int[LEVELS + 1][];     // [level], level 0 unused
+    final short[][] topY = new short[LEVELS + 1][];
+    private final long[] covered = new long[TerrainRegionStore.CHUNKS_PER_REGION / 64];
+
+    // changed since the last hand-off to the writer
+    boolean dirty;
+
+    TerrainSurfaceLod() {
+        int unknown = TerrainSurfaceCache.unknownArgb();
+        for (int l = 1; l <= LEVELS; l++) {
+            int n = size(l) * size(l);
+            color[l] = new int[n];
+            topY[l] = new short[n];
+            Arrays.fill(color[l], unknown);
+            Arrays.fill(topY[l], Short.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Pixels per tile side at a level.
+     */
+    static int size(int level) {
+        return TerrainSurfaceTile.BLOCKS >> level;
+    }
+
+    static int index(int level, int x, int z) {
+        return (((z & TerrainSurfaceTile.MASK) >> level) << (TerrainSurfaceTile.SHIFT - level)) | ((x & TerrainSurfaceTile.MASK) >> level);
+    }
+
+    /**
+     * Level for a blocks-per-pixel step: the largest 2^L not above it, capped at {@link #LEVELS}.
+     */
+    static int levelFor(int blocksPerPixel) {
+        if (blocksPerPixel <= 1) return 0;
+        return Math.min(LEVELS, 31 - Integer.numberOfLeadingZeros(blocksPerPixel));
+    }
+
+    boolean isCovered(int local) {
+        return (covered[local >>> 6] & (1L << local)) != 0;
+    }
+
+    /**
+     * Downsample one chunk (16x16, row-major) into every level.
+     */
+    void put(int local, int[] chunkColor, short[] chunkTopY) {
+        int lcx = local & (TerrainRegionStore.REGION_SIZE - 1);
+        int lcz = local >> TerrainRegionStore.REGION_SHIFT;
+
+        int[] srcC = chunkColor;
+        short[] srcH = chunkTopY;
+        int srcStride = 16;
+        int srcBase = 0;
+        // known blocks under each source pixel of this chunk, row-major; null at level 0 (one each)
+        int[] srcN = null;
+
+        for (int l = 1; l <= LEVELS; l++) {
+            int n = 16 >> l;            // level pixels per chunk side
+            int stride = size(l);
+            int base = lcz * n * stride + lcx * n;
+            int[] dc = color[l];
+            short[] dh = topY[l];
+            int[] dn = new int[n * n];
+
+            for (int pz = 0; pz < n; pz++) {
+                for (int px = 0; px < n; px++) {
+                    int s = srcBase + (pz * 2) * srcStride + px * 2;
+                    int d = base + pz * stride + px;
+                    dn[pz * n + px] = average(srcC, srcH, s, srcStride, srcN, (pz * 2) * (n * 2) + px * 2, n * 2, dc, dh, d);
+                }
+            }
+
+            srcC = dc;
+            srcH = dh;
+            srcStride = stride;
+            srcBase = base;
+            srcN = dn;
+        }
+
+        if (!isCovered(local)) {
+            covered[local >>> 6] |= 1L << local;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Drop a chunk's footprint from every level, so readers resolve the chunk itself until it is put again.
+     */
+    void invalidate(int local) {
+        int lcx = local & (TerrainRegionStore.REGION_SIZE - 1);
+        int lcz = local >> TerrainRegionStore.REGION_SHIFT;
+        int unknown = TerrainSurfaceCache.unknownArgb();
+
+        for (int l = 1; l <= LEVELS; l++) {
+            int n = 16 >> l;
+            int stride = size(l);
+            int base = lcz * n * stride + lcx * n;
+            for (int pz = 0; pz < n; pz++) {
+                Arrays.fill(color[l], base + pz * stride, base + pz * stride + n, unknown);
+                Arrays.fill(topY[l], base + pz * stride, base + pz * stride + n, Short.MIN_VALUE);
+            }
+        }
+
+        if (isCovered(local)) {
+            covered[local >>> 6] &= ~(1L << local);
+            dirty = true;
+        }
+    }
+
+    /**
+     * {@link #invalidate} every chunk set in a region chunk bitmap.
+     */
+    void invalidate(long[] chunks) {
+        for (int w = 0; w < chunks.length; w++) {
+            long bits = chunks[w];
+            while (bits != 0) {
+                invalidate((w << 6) | Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    /**
+     * Take the footprint of every chunk other covers and this does not (a sidecar loaded after captures
+     * already started this tile's levels).
+     */
+    void merge(TerrainSurfaceLod other) {
+        for (int local = 0; local < TerrainRegionStore.CHUNKS_PER_REGION; local++) {
+            if (isCovered(local) || !other.isCovered(local)) continue;
+
+            int lcx = local & (TerrainRegionStore.REGION_SIZE - 1);
+            int lcz = local >> TerrainRegionStore.REGION_SHIFT;
+            for (int l = 1; l <= LEVELS; l++) {
+                int n = 16 >> l;
+                int stride = size(l);
+                int base = lcz * n * stride + lcx * n;
+                for (int pz = 0; pz < n; pz++) {
+                    System.arraycopy(other.color[l], base + pz * stride, color[l], base + pz * stride, n);
+                    System.arraycopy(other.topY[l], base + pz * stride, topY[l], base + pz * stride, n);
+                }
+            }
+            covered[local >>> 6] |= 1L << local;
+        }
+    }
+
+    TerrainSurfaceLod copy() {
+        TerrainSurfaceLod c = new TerrainSurfaceLod();
+        for (int l = 1; l <= LEVELS; l++) {
+            System.arraycopy(color[l], 0, c.color[l], 0, color[l].length);
+            System.arraycopy(topY[l], 0, c.topY[l], 0, topY[l].length);
+        }
+        System.arraycopy(covered, 0, c.covered, 0, covered.length);
+        return c;
+    }
+
+    /**
+     * Read a sidecar file; null if it does not exist or is unreadable.
+     */
+    static TerrainSurfaceLod read(File f) {
+        if (!f.isFile()) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC) return null;
+
+            DataInputStream z = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
+            TerrainSurfaceLod lod = new TerrainSurfaceLod();
+            for (int i = 0; i < lod.covered.length; i++) lod.covered[i] = z.readLong();
+            for (int l = 1; l <= LEVELS; l++) {
+                int[] c = lod.color[l];
+                short[] h = lod.topY[l];
+                for (int i = 0; i < c.length; i++) c[i] = z.readInt();
+                for (int i = 0; i < h.length; i++) h[i] = z.readShort();
+            }
+            return lod;
+        } catch (IOException e) {
+            System.out.println("[TechnoFactions] TerrainSurfaceLod read failed " + f.getName() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Write to a temp file and move it over f, so readers see either the old or the new sidecar.
+     */
+    void write(File f) throws IOException {
+        File tmp = TerrainRegionFile.tempFile(f);
+
+        Deflater deflater = new Deflater(6);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+
+            DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater);
+            DataOutputStream z = new DataOutputStream(new BufferedOutputStream(dos));
+            for (long w : covered) z.writeLong(w);
+            for (int l = 1; l <= LEVELS; l++) {
+                for (int c : color[l]) z.writeInt(c);
+                for (short h : topY[l]) z.writeShort(h);
+            }
+            z.flush();
+            dos.finish();
+        } finally {
+            deflater.end();
+        }
+
+        TerrainRegionFile.replace(tmp, f);
+    }
+
+    /**
+     * Average the 2x2 source pixels at s into dc/dh[d], each weighted by its known block count (srcN at ns,
+     * or 1 at level 0). Returns the known block count of the result.
+     */
+    private int average(int[] srcC, short[] srcH, int s, int srcStride, int[] srcN, int ns, int nStride, int[] dc, short[] dh, int d) {
+        int r = 0, g = 0, b = 0, h = 0, n = 0;
+        for (int k = 0; k < 4; k++) {
+            int i = s + (k & 1) + (k >> 1) * srcStride;
+            int c = srcC[i];
+            short y = srcH[i];
+            if (y == Short.MIN_VALUE || c == TerrainSurfaceCache.unknownArgb()) continue;
+            int w = srcN != null ? srcN[ns + (k & 1) + (k >> 1) * nStride] : 1;
+            r += ((c >> 16) & 0xFF) * w;
+            g += ((c >> 8) & 0xFF) * w;
+            b += (c & 0xFF) * w;
+            h += y * w;
+            n += w;
+        }
+
+        int c;
+        short y;
+        if (n == 0) {
+            c = TerrainSurfaceCache.unknownArgb();
+            y = Short.MIN_VALUE;
+        } else {
+            c = 0xFF000000 | ((r / n) << 16) | ((g / n) << 8) | (b / n);
+            y = (short) Math.floorDiv(h, n);
+        }
+
+        if (dc[d] != c || dh[d] != y) {
+            dc[d] = c;
+            dh[d] = y;
+            dirty = true;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,138 @@
+package com.technofactions.client.ui;
+
+import java.util.Arrays;
+
+/**
+ * One region (32x32 chunks = 512x512 blocks) of the in-memory surface cache, stored as flat
+ * row-major arrays so a pixel read is one region lookup plus array indexing.
+ *
+ * Chunks are resolved lazily: "resolved" means we already looked (memory, write queue or disk),
+ * "present" means the chunk has data. resolved && !present is the negative cache, so unexplored
+ * chunks cost two bits and tiles without any data never allocate their arrays.
+ *
+ * Downsampled levels live in {@link TerrainSurfaceLod}, loaded from the sidecar or built as chunks arrive.
+ */
+final class TerrainSurfaceTile {
+    static final int SHIFT = 9;                 // 512 blocks
+    static final int BLOCKS = 1 << SHIFT;
+    static final int MASK = BLOCKS - 1;
+    static final int BYTES = BLOCKS * BLOCKS * (4 + 2);
+
+    final int rx;
+    final int rz;
+
+    int[] color;      // null until the first chunk with data arrives
+    short[] topY;
+    TerrainSurfaceLod lod;   // null until loaded from disk or the first chunk arrives
+    boolean lodPending;      // its sidecar is being loaded in the background
+
+    private final long[] resolved = new long[TerrainRegionStore.CHUNKS_PER_REGION / 64];
+    private final long[] present = new long[TerrainRegionStore.CHUNKS_PER_REGION / 64];
+
+    long lastUse;
+
+    TerrainSurfaceTile(int rx, int rz) {
+        this.rx = rx;
+        this.rz = rz;
+    }
+
+    static int index(int x, int z) {
+        return ((z & MASK) << SHIFT) | (x & MASK);
+    }
+
+    boolean hasData() {
+        return color != null || lod != null;
+    }
+
+    boolean isResolved(int local) {
+        return (resolved[local >>> 6] & (1L << local)) != 0;
+    }
+
+    boolean isPresent(int local) {
+        return (present[local >>> 6] & (1L << local)) != 0;
+    }
+
+    void markMissing(int local) {
+        resolved[local >>> 6] |= 1L << local;
+        present[local >>> 6] &= ~(1L << local);
+    }
+
+    /**
+     * Forget what we know about a chunk so the next access resolves it again, its LOD footprint included.
+     */
+    void unresolve(int local) {
+        resolved[local >>> 6] &= ~(1L << local);
+        present[local >>> 6] &= ~(1L << local);
+        if (lod != null) lod.invalidate(local);
+    }
+
+    int missingCount() {
+        int n = 0;
+        for (int i = 0; i < resolved.length; i++) n += Long.bitCount(resolved[i] & ~present[i]);
+        return n;
+    }
+
+    /**
+     * Scatter one chunk (16x16, row-major) into the region arrays and mark it present.
+     */
+    void put(int local, int[] chunkColor, short[] chunkTopY) {
+        if (color == null) {
+            color = new int[BLOCKS * BLOCKS];
+            topY = new short[BLOCKS * BLOCKS];
+            Arrays.fill(color, TerrainSurfaceCache.unknownArgb());
+            Arrays.fill(topY, Short.MIN_VALUE);
+        }
+
+        int base = chunkBase(local);
+        for (int lz = 0; lz < 16; lz++) {
+            System.arraycopy(chunkColor, lz << 4, color, base + (lz << SHIFT), 16);
+            System.arraycopy(chunkTopY, lz << 4, topY, base + (lz << SHIFT), 16);
+        }
+
+        resolved[local >>> 6] |= 1L << local;
+        present[local >>> 6] |= 1L << local;
+
+        if (lod == null) lod = new TerrainSurfaceLod();
+        lod.put(local, chunkColor, chunkTopY);
+    }
+
+    /**
+     * Gather one present chunk back into 16x16 row-major arrays.
+     */
+    void copyChunk(int local, int[] chunkColor, short[] chunkTopY) {
+        int base = chunkBase(local);
+        for (int lz = 0; lz < 16; lz++) {
+            System.arraycopy(color, base + (lz << SHIFT), chunkColor, lz << 4, 16);
+            System.arraycopy(topY, base + (lz << SHIFT), chunkTopY, lz << 4, 16);
+        }
+    }
+
+    /**
+     * Merge a tile loaded in the background: take every chunk it resolved that this tile has not,
+     * and its LOD levels for chunks this tile's levels do not cover yet.
+     */
+    void adopt(TerrainSurfaceTile loaded) {
+        if (lod == null) lod = loaded.lod;
+        else if (loaded.lod != null) lod.merge(loaded.lod);
+        lodPending = false;
+
+        int[] c = new int[256];
+        short[] h = new short[256];
+        for (int local = 0; local < TerrainRegionStore.CHUNKS_PER_REGION; local++) {
+            if (isResolved(local) || !loaded.isResolved(local)) continue;
+
+            if (loaded.isPresent(local)) {
+                loaded.copyChunk(local, c, h);
+                put(local, c, h);
+            } else {
+                markMissing(local);
+            }
+        }
+    }
+
+    private static int chunkBase(int local) {
+        int lcx = local & (TerrainRegionStore.REGION_SIZE - 1);
+        int lcz = local >> TerrainRegionStore.REGION_SHIFT;
+        return ((lcz << 4) << SHIFT) | (lcx << 4);
+    }
+}
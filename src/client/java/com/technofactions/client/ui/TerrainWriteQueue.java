@@ -0,0 +1,231 @@
+package com.technofactions.client.ui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-behind queue for captured surface chunks.
+ *
+ * Captures are coalesced per region (a chunk captured twice is written once) and a background
+ * thread flushes one region at a time through {@link TerrainRegionStore#writeRegion}.
+ * LOD sidecars handed over on tile eviction are written after pending chunks, latest copy per region.
+ * {@link #close()} drains everything that is still pending before the store is closed.
+ */
+final class TerrainWriteQueue {
+    private final TerrainRegionStore store;
+
+    private final Object lock = new Object();
+
+    // region key -> (chunk key -> latest entry), regions in the order they first became dirty
+    private final LinkedHashMap<Long, Map<Long, TerrainRegionStore.Entry>> dirty = new LinkedHashMap<>();
+    // batch currently being written; still visible to peek() until it is on disk
+    private Map<Long, TerrainRegionStore.Entry> inFlight = null;
+    private long inFlightKey = 0L;
+    // region key -> latest LOD copy, plus the one being written
+    private final LinkedHashMap<Long, TerrainSurfaceLod> dirtyLod = new LinkedHashMap<>();
+    private TerrainSurfaceLod inFlightLod = null;
+    private long inFlightLodKey = 0L;
+    private int pendingChunks = 0;
+    private boolean closed = false;
+
+    private final Thread worker;
+
+    // owned by the worker thread: payloads are compressed before taking the store lock
+    private final TerrainChunkCodec codec = new TerrainChunkCodec();
+
+    TerrainWriteQueue(TerrainRegionStore store) {
+        this.store = store;
+        this.worker = new Thread(this::run, "TechnoFactions-SurfaceWriter");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queue a copy of the chunk arrays; the caller may keep mutating its own arrays.
+     */
+    void submit(int cx, int cz, int[] color, short[] topY) {
+        submitOwned(cx, cz, color.clone(), topY.clone());
+    }
+
+    /**
+     * Queue the arrays themselves; the caller must not mutate them afterwards.
+     */
+    void submitOwned(int cx, int cz, int[] color, short[] topY) {
+        TerrainRegionStore.Entry e = new TerrainRegionStore.Entry(cx, cz, color, topY);
+        long rkey = TerrainRegionStore.packRegionKey(
+                Math.floorDiv(cx, TerrainRegionStore.REGION_SIZE),
+                Math.floorDiv(cz, TerrainRegionStore.REGION_SIZE));
+
+        synchronized (lock) {
+            if (closed) return;
+
+            Map<Long, TerrainRegionStore.Entry> region = dirty.computeIfAbsent(rkey, k -> new HashMap<>());
+            if (region.put(packChunkKey(cx, cz), e) == null) pendingChunks++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Copy a chunk that is queued but not yet on disk. Returns false if nothing is pending for it.
+     */
+    boolean peek(int cx, int cz, int[] color, short[] topY) {
+        synchronized (lock) {
+            TerrainRegionStore.Entry e = find(cx, cz);
+            if (e == null) return false;
+
+            System.arraycopy(e.color, 0, color, 0, 256);
+            System.arraycopy(e.topY, 0, topY, 0, 256);
+            return true;
+        }
+    }
+
+    /**
+     * Queue a region's LOD for writing. The caller hands over the object and must not mutate it afterwards.
+     */
+    void submitLod(int rx, int rz, TerrainSurfaceLod lod) {
+        synchronized (lock) {
+            if (closed) return;
+
+            dirtyLod.remove(TerrainRegionStore.packRegionKey(rx, rz));
+            dirtyLod.put(TerrainRegionStore.packRegionKey(rx, rz), lod);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Copy of a region LOD that is queued but not yet on disk, or null.
+     */
+    TerrainSurfaceLod peekLod(int rx, int rz) {
+        synchronized (lock) {
+            long rkey = TerrainRegionStore.packRegionKey(rx, rz);
+            TerrainSurfaceLod lod = dirtyLod.get(rkey);
+            if (lod == null && inFlightLod != null && inFlightLodKey == rkey) lod = inFlightLod;
+            return lod == null ? null : lod.copy();
+        }
+    }
+
+    int pendingChunks() {
+        synchronized (lock) {
+            return pendingChunks;
+        }
+    }
+
+    /**
+     * Stop accepting work, write out everything still queued and wait for the writer to finish.
+     */
+    void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try {
+            worker.join(10_000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (worker.isAlive()) {
+            System.out.println("[TechnoFactions] TerrainWriteQueue drain timed out, " + pendingChunks() + " chunks not written");
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long rkey;
+            Map<Long, TerrainRegionStore.Entry> batch = null;
+            TerrainSurfaceLod lod = null;
+
+            synchronized (lock) {
+                while (dirty.isEmpty() && dirtyLod.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                // chunk payloads first; LOD sidecars only when no chunk is waiting
+                if (!dirty.isEmpty()) {
+                    Iterator<Map.Entry<Long, Map<Long, TerrainRegionStore.Entry>>> it = dirty.entrySet().iterator();
+                    Map.Entry<Long, Map<Long, TerrainRegionStore.Entry>> first = it.next();
+                    it.remove();
+
+                    rkey = first.getKey();
+                    batch = first.getValue();
+                    inFlight = batch;
+                    inFlightKey = rkey;
+                } else if (!dirtyLod.isEmpty()) {
+                    Iterator<Map.Entry<Long, TerrainSurfaceLod>> it = dirtyLod.entrySet().iterator();
+                    Map.Entry<Long, TerrainSurfaceLod> first = it.next();
+                    it.remove();
+
+                    rkey = first.getKey();
+                    lod = first.getValue();
+                    inFlightLod = lod;
+                    inFlightLodKey = rkey;
+                } else {
+                    return;
+                }
+            }
+
+            int rx = (int) (rkey >> 32);
+            int rz = (int) rkey;
+
+            if (lod != null) {
+                try {
+                    store.writeLod(rx, rz, lod);
+                } catch (Throwable t) {
+                    System.out.println("[TechnoFactions] TerrainWriteQueue LOD write failed: " + t);
+                }
+
+                synchronized (lock) {
+                    inFlightLod = null;
+                }
+                continue;
+            }
+
+            try {
+                ArrayList<TerrainRegionStore.Entry> entries = new ArrayList<>(batch.values());
+                for (TerrainRegionStore.Entry e : entries) e.encode(codec);
+                // queued entries are unconditional: anything short of all of them is a failed write
+                int written = store.writeRegion(rx, rz, entries);
+                if (written < entries.size()) {
+                    System.out.println("[TechnoFactions] TerrainWriteQueue dropped " + (entries.size() - written) + " of " + entries.size()
+                            + " chunks for " + TerrainRegionStore.regionFileName(rx, rz));
+                }
+            } catch (Throwable t) {
+                System.out.println("[TechnoFactions] TerrainWriteQueue region write failed: " + t);
+            }
+
+            // Only drop the batch from "pending" after it is on disk, so peek() never misses it.
+            synchronized (lock) {
+                pendingChunks -= batch.size();
+                inFlight = null;
+            }
+        }
+    }
+
+    // caller holds lock; newer captures in dirty win over the batch being written
+    private TerrainRegionStore.Entry find(int cx, int cz) {
+        long rkey = TerrainRegionStore.packRegionKey(
+                Math.floorDiv(cx, TerrainRegionStore.REGION_SIZE),
+                Math.floorDiv(cz, TerrainRegionStore.REGION_SIZE));
+        long ckey = packChunkKey(cx, cz);
+
+        Map<Long, TerrainRegionStore.Entry> region = dirty.get(rkey);
+        if (region != null) {
+            TerrainRegionStore.Entry e = region.get(ckey);
+            if (e != null) return e;
+        }
+        if (inFlight != null && inFlightKey == rkey) return inFlight.get(ckey);
+        return null;
+    }
+
+    private static long packChunkKey(int cx, int cz) {
+        return ((long) cx << 32) ^ (cz & 0xFFFFFFFFL);
+    }
+}
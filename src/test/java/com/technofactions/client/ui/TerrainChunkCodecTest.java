@@ -0,0 +1,136 @@
+package com.technofactions.client.ui;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TerrainChunkCodecTest {
+    private final TerrainChunkCodec codec = new TerrainChunkCodec();
+
+    @Test
+    void roundTripsUniformChunk() {
+        int[] color = new int[256];
+        short[] topY = new short[256];
+        Arrays.fill(color, 0xFF336699);
+        Arrays.fill(topY, (short) 64);
+
+        assertRoundTrip(color, topY);
+    }
+
+    @Test
+    void roundTripsExtremeHeights() {
+        int[] color = new int[256];
+        short[] topY = new short[256];
+        Arrays.fill(color, 0xFF000000);
+        // every step is a full-range jump, the widest delta the varints have to carry
+        for (int i = 0; i < 256; i++) topY[i] = ((i + (i >> 4)) & 1) == 0 ? Short.MIN_VALUE : Short.MAX_VALUE;
+        topY[17] = Short.MIN_VALUE + 1;
+
+        assertRoundTrip(color, topY);
+    }
+
+    @Test
+    void roundTripsUnknownColumns() {
+        int[] color = new int[256];
+        short[] topY = new short[256];
+        for (int i = 0; i < 256; i++) {
+            color[i] = i < 128 ? 0 : 0xFF7F7F7F;
+            topY[i] = i < 128 ? Short.MIN_VALUE : (short) (i - 200);
+        }
+
+        assertRoundTrip(color, topY);
+    }
+
+    @Test
+    void roundTripsEveryColumnDistinct() {
+        // 256 columns can never hold more than 256 colors: the full palette is the worst case, and the
+        // raw-colors mode is only ever decoded (see decodesRawMode)
+        int[] color = new int[256];
+        short[] topY = new short[256];
+        for (int i = 0; i < 256; i++) {
+            color[i] = 0xFF000000 | (i * 0x010305);
+            topY[i] = (short) (i * 37 - 4000);
+        }
+
+        assertRoundTrip(color, topY);
+    }
+
+    @Test
+    void decodesRawMode() throws IOException {
+        int[] color = new int[256];
+        short[] topY = new short[256];
+        for (int i = 0; i < 256; i++) {
+            color[i] = 0x80000000 | (i << 8) | i;
+            topY[i] = (short) (100 - i);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream raw = new DataOutputStream(bytes);
+        raw.writeByte(1);
+        for (int c : color) raw.writeInt(c);
+        raw.writeShort(topY[0]);
+        for (int i = 1; i < 256; i++) {
+            int pred = (i & 15) != 0 ? topY[i - 1] : topY[i - 16];
+            int d = topY[i] - pred;
+            int zz = (d << 1) ^ (d >> 31);
+            while ((zz & ~0x7F) != 0) {
+                raw.writeByte((zz & 0x7F) | 0x80);
+                zz >>>= 7;
+            }
+            raw.writeByte(zz);
+        }
+
+        byte[] payload = deflate(bytes.toByteArray());
+        int[] colorOut = new int[256];
+        short[] topYOut = new short[256];
+        assertTrue(codec.decode(payload, 0, payload.length, colorOut, topYOut));
+        assertArrayEquals(color, colorOut);
+        assertArrayEquals(topY, topYOut);
+    }
+
+    @Test
+    void rejectsTruncatedAndGarbagePayloads() {
+        int[] color = new int[256];
+        short[] topY = new short[256];
+        for (int i = 0; i < 256; i++) {
+            color[i] = 0xFF000000 | (i & 7);
+            topY[i] = (short) i;
+        }
+        int len = codec.encode(color, topY);
+        byte[] payload = Arrays.copyOf(codec.output(), len);
+
+        assertFalse(codec.decode(payload, 0, len - 1, color, topY));
+        assertFalse(codec.decode(new byte[] { 1, 2, 3, 4, 5, 6 }, 0, 6, color, topY));
+        assertFalse(codec.decode(deflate(new byte[] { 7 }), 0, deflate(new byte[] { 7 }).length, color, topY));
+    }
+
+    private void assertRoundTrip(int[] color, short[] topY) {
+        int len = codec.encode(color, topY);
+        byte[] payload = Arrays.copyOf(codec.output(), len);
+
+        int[] colorOut = new int[256];
+        short[] topYOut = new short[256];
+        assertTrue(codec.decode(payload, 0, len, colorOut, topYOut));
+        assertArrayEquals(color, colorOut);
+        assertArrayEquals(topY, topYOut);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater d = new Deflater();
+        d.setInput(raw);
+        d.finish();
+        byte[] out = new byte[raw.length + 64];
+        int n = 0;
+        while (!d.finished()) n += d.deflate(out, n, out.length - n);
+        d.end();
+        return Arrays.copyOf(out, n);
+    }
+}
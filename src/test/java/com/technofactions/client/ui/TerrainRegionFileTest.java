@@ -0,0 +1,296 @@
+package com.technofactions.client.ui;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TerrainRegionFileTest {
+    @TempDir
+    File dir;
+
+    private final TerrainChunkCodec codec = new TerrainChunkCodec();
+    private final int[] color = new int[256];
+    private final short[] topY = new short[256];
+
+    @Test
+    void migratesV1OnOpen() throws IOException {
+        File f = new File(dir, "r.0.0.tfc");
+        writeV1(f, new int[] { 0, 5, 1023 }, new int[] { 1000, 0, 3000 });
+        assertEquals(1, TerrainRegionFile.detectVersion(f));
+
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, false, codec)) {
+            assertEquals(TerrainRegionFile.VERSION, TerrainRegionFile.detectVersion(f));
+            assertEquals(3, r.builtCount());
+            assertEquals(1000, r.stamp(0));
+            assertEquals(0, r.stamp(5));
+            assertEquals(3000, r.stamp(1023));
+            for (int local : new int[] { 0, 5, 1023 }) assertChunk(r, local);
+            assertFalse(r.isBuilt(1));
+        }
+        assertTrue(f.length() < TerrainRegionFile.V1_ENTRIES_BYTES);
+    }
+
+    @Test
+    void migratesV1WithoutIndexBlock() throws IOException {
+        File f = new File(dir, "r.0.0.tfc");
+        writeV1(f, new int[] { 7 }, null);
+
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, false, codec)) {
+            assertEquals(1, r.builtCount());
+            assertEquals(0, r.stamp(7));
+            assertChunk(r, 7);
+        }
+    }
+
+    @Test
+    void reusesSectorsAfterRewrite() throws IOException {
+        File f = new File(dir, "r.0.0.tfc");
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, true, codec)) {
+            writeBatch(r, 0, 0, 1);
+            writeBatch(r, 1, 1, 1);
+            long used = r.usedBytes();
+
+            // the first rewrite goes to fresh sectors, the old run is only freed once the header is on disk
+            writeBatch(r, 0, 0, 2);
+            long size = r.sizeBytes();
+            assertEquals(used, r.usedBytes());
+
+            // same-size payloads from then on alternate between the two runs
+            for (int stamp = 3; stamp < 10; stamp++) {
+                writeBatch(r, 0, 0, stamp);
+                assertEquals(size, r.sizeBytes(), "rewrite " + stamp + " grew the file");
+                assertEquals(used, r.usedBytes());
+                assertEquals(stamp, r.stamp(0));
+            }
+            assertChunk(r, 0, 0);
+            assertChunk(r, 1, 1);
+        }
+
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, false, codec)) {
+            assertEquals(2, r.builtCount());
+            assertEquals(0, r.damaged());
+            assertEquals(9, r.stamp(0));
+            assertChunk(r, 0, 0);
+        }
+    }
+
+    @Test
+    void dropsDamagedEntriesOnLoad() throws IOException {
+        File f = new File(dir, "r.0.0.tfc");
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, true, codec)) {
+            for (int local = 0; local < 3; local++) writeBatch(r, local, local, 1);
+        }
+
+        // chunk 1 points into the header, chunk 2 (written last) is cut off by truncation
+        patchHeader(f, 16 + TerrainRegionFile.CHUNKS / 8 + 12, 0);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(raf.length() - TerrainRegionFile.SECTOR_BYTES / 2);
+        }
+
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, false, codec)) {
+            assertEquals(2, r.damaged());
+            assertEquals(1, r.builtCount());
+            assertChunk(r, 0);
+            assertFalse(r.isBuilt(1));
+            assertFalse(r.isBuilt(2));
+            assertEquals(TerrainRegionFile.READ_MISSING, r.read(2, codec, color, topY));
+        }
+    }
+
+    @Test
+    void fallsBackToPreviousHeaderAfterTornWrite() throws IOException {
+        File f = new File(dir, "r.0.0.tfc");
+        int gen;
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, true, codec)) {
+            writeBatch(r, 0, 0, 1);
+            writeBatch(r, 1, 1, 1);
+            gen = r.generation();
+        }
+
+        // the next header write reached sector 0 but only half of its slot
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(TerrainRegionFile.slotPosition(gen + 1));
+            raf.write(new byte[TerrainRegionFile.HEADER_BYTES / 2]);
+            raf.seek(8);
+            raf.writeInt(gen + 1);
+        }
+
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, false, codec)) {
+            // the intact slot's contents, with the next write aimed at the torn slot
+            assertEquals(gen + 2, r.generation());
+            assertEquals(2, r.builtCount());
+            assertChunk(r, 0);
+            assertChunk(r, 1);
+
+            writeBatch(r, 2, 2, 1);
+        }
+
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, false, codec)) {
+            assertEquals(gen + 3, r.generation());
+            assertEquals(3, r.builtCount());
+            for (int local = 0; local < 3; local++) assertChunk(r, local);
+        }
+    }
+
+    @Test
+    void migratesV2OnOpen() throws IOException {
+        File f = new File(dir, "r.0.0.tfc");
+        writeV2(f, new int[] { 3, 900 }, new int[] { 1000, 2000 });
+        assertEquals(TerrainRegionFile.V2, TerrainRegionFile.detectVersion(f));
+
+        try (TerrainRegionFile r = TerrainRegionFile.openReadOnly(f)) {
+            assertEquals(2, r.builtCount());
+            assertChunk(r, 900);
+        }
+        assertEquals(TerrainRegionFile.V2, TerrainRegionFile.detectVersion(f));
+
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, false, codec)) {
+            assertEquals(TerrainRegionFile.VERSION, TerrainRegionFile.detectVersion(f));
+            assertEquals(2, r.builtCount());
+            assertEquals(1000, r.stamp(3));
+            assertEquals(2000, r.stamp(900));
+            assertChunk(r, 3);
+            assertChunk(r, 900);
+        }
+    }
+
+    @Test
+    void downgradesToV1AndBack() throws IOException {
+        File f = new File(dir, "r.0.0.tfc");
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, true, codec)) {
+            writeBatch(r, 3, 3, 1234);
+            writeBatch(r, 1000, 1000, 5678);
+        }
+
+        assertEquals(2, TerrainRegionFile.downgradeV1(f, codec));
+        assertEquals(1, TerrainRegionFile.detectVersion(f));
+
+        try (TerrainRegionFile r = TerrainRegionFile.open(f, false, codec)) {
+            assertEquals(TerrainRegionFile.VERSION, TerrainRegionFile.detectVersion(f));
+            assertEquals(2, r.builtCount());
+            assertEquals(1234, r.stamp(3));
+            assertEquals(5678, r.stamp(1000));
+            assertChunk(r, 3);
+            assertChunk(r, 1000);
+        }
+    }
+
+    @Test
+    void readOnlyLeavesFilesAlone() throws IOException {
+        File empty = new File(dir, "r.0.0.tfc");
+        Files.createFile(empty.toPath());
+        try (TerrainRegionFile r = TerrainRegionFile.openReadOnly(empty)) {
+            assertEquals(0, r.builtCount());
+        }
+        assertEquals(0, empty.length());
+
+        File v1 = new File(dir, "r.1.0.tfc");
+        writeV1(v1, new int[] { 0 }, null);
+        assertThrows(IOException.class, () -> TerrainRegionFile.openReadOnly(v1));
+        assertEquals(1, TerrainRegionFile.detectVersion(v1));
+
+        assertNull(TerrainRegionFile.openReadOnly(new File(dir, "r.2.0.tfc")));
+    }
+
+    // ---------------------------------------------------------------------
+
+    private void writeBatch(TerrainRegionFile r, int local, int seed, int stamp) throws IOException {
+        fill(seed);
+        int len = codec.encode(color, topY);
+        r.writeBatch(new int[] { local }, new byte[][] { Arrays.copyOf(codec.output(), len) }, new int[] { len }, 1, stamp);
+    }
+
+    private void assertChunk(TerrainRegionFile r, int local) throws IOException {
+        assertChunk(r, local, local);
+    }
+
+    private void assertChunk(TerrainRegionFile r, int local, int seed) throws IOException {
+        int[] c = new int[256];
+        short[] h = new short[256];
+        assertEquals(TerrainRegionFile.READ_OK, r.read(local, codec, c, h));
+        fill(seed);
+        assertArrayEquals(color, c, "colors of " + local);
+        assertArrayEquals(topY, h, "heights of " + local);
+    }
+
+    // distinct per seed, noisy enough that payloads span a few sectors
+    private void fill(int seed) {
+        for (int i = 0; i < 256; i++) {
+            color[i] = 0xFF000000 | ((i * 0x9E3779B1 + seed * 0x85EBCA6B) >>> 8);
+            topY[i] = (short) ((i * 31 + seed * 17) % 300 - 64);
+        }
+    }
+
+    // rewrite an int in the current header slot, with a checksum to match
+    private void patchHeader(File f, int offset, int value) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(8);
+            long pos = TerrainRegionFile.slotPosition(raf.readInt());
+            ByteBuffer header = ByteBuffer.allocate(TerrainRegionFile.HEADER_BYTES);
+            raf.seek(pos);
+            raf.readFully(header.array());
+            header.putInt(offset, value);
+            header.putInt(12, TerrainRegionFile.headerChecksum(header));
+            raf.seek(pos);
+            raf.write(header.array());
+        }
+    }
+
+    // the v2 layout: one header in place, payloads from sector HEADER_SECTORS
+    private void writeV2(File f, int[] locals, int[] stamps) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TerrainRegionFile.HEADER_SECTORS * TerrainRegionFile.SECTOR_BYTES);
+        header.putInt(0, TerrainRegionFile.MAGIC);
+        header.putInt(4, TerrainRegionFile.V2);
+        header.putInt(8, 1);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            int sector = TerrainRegionFile.HEADER_SECTORS;
+            for (int k = 0; k < locals.length; k++) {
+                fill(locals[k]);
+                int len = codec.encode(color, topY);
+                raf.seek((long) sector * TerrainRegionFile.SECTOR_BYTES);
+                raf.write(codec.output(), 0, len);
+
+                int word = 16 + (locals[k] >>> 6) * 8;
+                header.putLong(word, header.getLong(word) | 1L << locals[k]);
+                int entry = 16 + TerrainRegionFile.CHUNKS / 8 + locals[k] * 12;
+                header.putInt(entry, sector);
+                header.putInt(entry + 4, len);
+                header.putInt(entry + 8, stamps[k]);
+                sector += (len + TerrainRegionFile.SECTOR_BYTES - 1) / TerrainRegionFile.SECTOR_BYTES;
+            }
+            raf.seek(0);
+            raf.write(header.array());
+        }
+    }
+
+    private void writeV1(File f, int[] locals, int[] stamps) throws IOException {
+        int size = (int) TerrainRegionFile.V1_ENTRIES_BYTES + (stamps != null ? 8 + TerrainRegionFile.CHUNKS / 8 + TerrainRegionFile.CHUNKS * 4 : 0);
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int k = 0; k < locals.length; k++) {
+            int off = locals[k] * TerrainRegionFile.V1_ENTRY_BYTES;
+            fill(locals[k]);
+            buf.put(off, (byte) 1);
+            buf.slice(off + 1, 256 * 4).asIntBuffer().put(color);
+            buf.slice(off + 1 + 256 * 4, 256 * 2).asShortBuffer().put(topY);
+        }
+        if (stamps != null) {
+            int ib = (int) TerrainRegionFile.V1_ENTRIES_BYTES;
+            buf.putInt(ib, 0x54464349);   // "TFCI"
+            for (int k = 0; k < locals.length; k++) buf.putInt(ib + 8 + TerrainRegionFile.CHUNKS / 8 + locals[k] * 4, stamps[k]);
+        }
+        Files.write(f.toPath(), buf.array());
+    }
+}